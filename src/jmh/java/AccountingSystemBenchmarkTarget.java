@@ -0,0 +1,62 @@
+import java.util.Optional;
+
+import benchmarks.AccountingSystemTarget;
+
+/**
+ * AccountingSystem udostępniony benchmarkom z pakietu benchmarks.
+ */
+public class AccountingSystemBenchmarkTarget implements AccountingSystemTarget {
+
+    private static final PhoneInterface ACCEPTING_PHONE = new PhoneInterface() {
+        @Override
+        public boolean newConnection(String number) {
+            return true;
+        }
+
+        @Override
+        public void connectionClosed(String number) {
+        }
+    };
+
+    private final AccountingSystem system = new AccountingSystem();
+
+    @Override
+    public int phoneRegistration(String number) {
+        return this.system.phoneRegistration(number, ACCEPTING_PHONE);
+    }
+
+    @Override
+    public long subscriptionPurchase(int handle, long time) {
+        return this.system.subscriptionPurchase(handle, time);
+    }
+
+    @Override
+    public Optional<Long> getRemainingTime(int handle) {
+        return this.system.getRemainingTime(handle);
+    }
+
+    @Override
+    public boolean connection(int handleFrom, int handleTo) {
+        return this.system.connection(handleFrom, handleTo);
+    }
+
+    @Override
+    public void disconnection(int handle) {
+        this.system.disconnection(handle);
+    }
+
+    @Override
+    public Optional<Long> getBilling(int handleFrom, int handleTo) {
+        return this.system.getBilling(handleFrom, handleTo);
+    }
+
+    @Override
+    public Optional<Boolean> isConnected(int handle) {
+        return this.system.isConnected(handle);
+    }
+
+    @Override
+    public void close() {
+        this.system.close();
+    }
+}
@@ -0,0 +1,159 @@
+package benchmarks;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Przepustowość i rozkład czasu (SampleTime) operacji AccountingSystem.
+ * Liczbę wątków ustala BenchmarkMain albo opcja -t.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountingSystemBenchmark {
+
+    private static final int ACCOUNTS = 1024;
+    private static final long PURCHASE = 1_000_000_000_000L;
+
+    /**
+     * System z ACCOUNTS zarejestrowanymi i opłaconymi numerami.
+     */
+    @State(Scope.Benchmark)
+    public static class Registered {
+        AccountingSystemTarget system;
+        int[] handles;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            this.system = AccountingSystemTarget.create();
+            this.handles = new int[ACCOUNTS];
+            for (int i = 0; i < ACCOUNTS; i++) {
+                this.handles[i] = this.system.phoneRegistration("registered-" + i);
+                this.system.subscriptionPurchase(this.handles[i], PURCHASE);
+            }
+            for (int i = 0; i < ACCOUNTS; i += 2) {
+                this.system.connection(this.handles[i], this.handles[i + 1]);
+                this.system.disconnection(this.handles[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            this.system.close();
+        }
+    }
+
+    /**
+     * Stan wątku: własna para numerów do połączeń i generator indeksów kont.
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+        int from;
+        int to;
+        int[] handles;
+        int seed;
+
+        @Setup(Level.Trial)
+        public void setUp(Registered registered, ThreadParams thread) {
+            this.from = registered.system.phoneRegistration("caller-" + thread.getThreadIndex());
+            this.to = registered.system.phoneRegistration("callee-" + thread.getThreadIndex());
+            registered.system.subscriptionPurchase(this.from, PURCHASE);
+            this.handles = registered.handles;
+            this.seed = 0x9E3779B9 * (thread.getThreadIndex() + 1);
+        }
+
+        int nextIndex() {
+            int x = this.seed;
+            x ^= x << 13;
+            x ^= x >>> 17;
+            x ^= x << 5;
+            this.seed = x;
+            return x & (ACCOUNTS - 1);
+        }
+
+        int next() {
+            return this.handles[this.nextIndex()];
+        }
+    }
+
+    /**
+     * Pusty system tworzony na każdą iterację, aby rejestracja nie mierzyła
+     * coraz większej mapy numerów.
+     */
+    @State(Scope.Benchmark)
+    public static class Empty {
+        AccountingSystemTarget system;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            this.system = AccountingSystemTarget.create();
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() {
+            this.system.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Numbers {
+        String prefix;
+        long next;
+
+        @Setup(Level.Iteration)
+        public void setUp(ThreadParams thread) {
+            this.prefix = "number-" + thread.getThreadIndex() + "-";
+            this.next = 0;
+        }
+    }
+
+    @Benchmark
+    public int phoneRegistration(Empty empty, Numbers numbers) {
+        return empty.system.phoneRegistration(numbers.prefix + numbers.next++);
+    }
+
+    @Benchmark
+    public long subscriptionPurchase(Registered registered, Caller caller) {
+        return registered.system.subscriptionPurchase(caller.next(), 1L);
+    }
+
+    @Benchmark
+    public Optional<Long> getRemainingTime(Registered registered, Caller caller) {
+        return registered.system.getRemainingTime(caller.next());
+    }
+
+    @Benchmark
+    public boolean connectionRoundTrip(Registered registered, Caller caller) {
+        boolean connected = registered.system.connection(caller.from, caller.to);
+        if (connected)
+            registered.system.disconnection(caller.from);
+        return connected;
+    }
+
+    @Benchmark
+    public Optional<Long> getBilling(Registered registered, Caller caller) {
+        int pair = caller.nextIndex() & ~1;
+        return registered.system.getBilling(caller.handles[pair], caller.handles[pair + 1]);
+    }
+
+    @Benchmark
+    public Optional<Boolean> isConnected(Registered registered, Caller caller) {
+        return registered.system.isConnected(caller.next());
+    }
+}
@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.util.Optional;
+
+/**
+ * Operacje AccountingSystemInterface mierzone przez benchmarki. Klasy z
+ * pakietu domyślnego nie mogą być importowane, a JMH wymaga pakietu, dlatego
+ * benchmarki korzystają z AccountingSystem przez ten interfejs. Implementacja
+ * (AccountingSystemBenchmarkTarget) leży w pakiecie domyślnym.
+ */
+public interface AccountingSystemTarget extends AutoCloseable {
+
+    /**
+     * Rejestruje numer z telefonem, który przyjmuje każde połączenie.
+     */
+    int phoneRegistration(String number);
+
+    long subscriptionPurchase(int handle, long time);
+
+    Optional<Long> getRemainingTime(int handle);
+
+    boolean connection(int handleFrom, int handleTo);
+
+    void disconnection(int handle);
+
+    Optional<Long> getBilling(int handleFrom, int handleTo);
+
+    Optional<Boolean> isConnected(int handle);
+
+    @Override
+    void close();
+
+    static AccountingSystemTarget create() {
+        try {
+            return (AccountingSystemTarget) Class.forName("AccountingSystemBenchmarkTarget")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Uruchamia benchmarki kolejno dla 1, 2, 4, ... wątków aż do liczby rdzeni
+ * (lub raz, gdy podano -t). Wynik każdego przebiegu zapisywany jest w formacie
+ * JSON w katalogu target/jmh (threads-N.json), chyba że podano -rff.
+ * Pozostałe argumenty przekazywane są do JMH bez zmian.
+ */
+public class BenchmarkMain {
+
+    private static final String RESULT_DIRECTORY = "target/jmh";
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+                || options.shouldListResultFormats() || options.shouldListWithParams()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        if (options.getThreads().hasValue()) {
+            run(options, options.getThreads().get());
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads < cores; threads *= 2)
+            run(options, threads);
+        run(options, cores);
+    }
+
+    private static void run(CommandLineOptions options, int threads) throws Exception {
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options).threads(threads).resultFormat(ResultFormatType.JSON);
+        if (!options.getResult().hasValue()) {
+            new File(RESULT_DIRECTORY).mkdirs();
+            builder.result(RESULT_DIRECTORY + "/threads-" + threads + ".json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -1,283 +1,1059 @@
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
 
-public class AccountingSystem implements AccountingSystemInterface {
+public class AccountingSystem implements AccountingSystemInterface, AutoCloseable {
+
+    private static final long NOT_RESERVED = Long.MIN_VALUE;
+    private static final int SNAPSHOT_GATE_BITS = 6;
+
+    private static final Optional<Boolean> IS_CONNECTED = Optional.of(Boolean.TRUE);
+    private static final Optional<Boolean> IS_NOT_CONNECTED = Optional.of(Boolean.FALSE);
 
     private ConcurrentHashMap<String, Account> registeredPhones;
-    private ConcurrentHashMap<String, String> currentConnections;
+    private final HandleTable<Account> accounts;
 
-    private ConcurrentCallMap billing;
+    private final AtomicInteger accountIds;
 
-    private List<String> awaitingCalls;
+    private final BillingMatrix billing;
 
     private ExecutorService executorService;
 
-    private final Object lock1;
-    private final Object lock2;
-    private final Object lock3;
+    private final boolean ownsExecutorService;
+
+    private final TimeSource timeSource;
+
+    private final TimingWheel timer;
+
+    private final long ringTimeout;
+
+    private final int maxRingingCalls;
+
+    private final AtomicInteger ringingCalls;
+
+    private final Journal journal;
+
+    private final AccountingSystemMetrics metrics;
+
+    private final StampedLock[] snapshotGates;
+
+    private final List<Snapshot> snapshots;
+
+    private volatile long snapshotEpoch;
 
     public AccountingSystem() {
+        this(new AccountingSystemConfig());
+    }
+
+    public AccountingSystem(ExecutorService callbackExecutor) {
+        this(new AccountingSystemConfig().callbackExecutor(callbackExecutor));
+    }
+
+    public AccountingSystem(AccountingSystemConfig config) {
         this.registeredPhones = new ConcurrentHashMap<>();
-        this.currentConnections = new ConcurrentHashMap<>();
-        this.awaitingCalls = Collections.synchronizedList(new ArrayList<>());
+        this.accounts = new HandleTable<>();
+
+        this.executorService = config.getCallbackExecutor();
+        this.ownsExecutorService = !config.hasCallbackExecutor();
+        this.metrics = new AccountingSystemMetrics(this.executorService);
+        if (config.isJmx())
+            this.metrics.register();
+
+        this.snapshotGates = new StampedLock[1 << SNAPSHOT_GATE_BITS];
+        for (int i = 0; i < this.snapshotGates.length; i++)
+            this.snapshotGates[i] = new StampedLock();
+        this.snapshots = new CopyOnWriteArrayList<>();
+
+        this.accountIds = new AtomicInteger();
+        this.billing = new BillingMatrix();
 
-        this.executorService = new ThreadPoolExecutor(66, 100,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>());
+        this.timeSource = config.getTimeSource();
+        this.timer = new TimingWheel(1L, 512, 2, this.timeSource);
+        this.ringTimeout = config.getRingTimeout();
+        this.maxRingingCalls = config.getMaxRingingCalls();
+        this.ringingCalls = new AtomicInteger();
 
-        this.billing = new ConcurrentCallMap();
+        Path journalDirectory = config.getJournalDirectory();
+        this.journal = journalDirectory == null ? null
+                : Journal.open(journalDirectory, config.getJournalSegmentSize(), new Recovery());
+    }
+
+    @Override
+    public int phoneRegistration(String number, PhoneInterface phone) {
+        return this.phoneRegistration(number, phone, null);
+    }
 
-        this.lock1 = new Object();
-        this.lock2 = new Object();
-        this.lock3 = new Object();
+    /**
+     * Telefony AsyncPhoneInterface dzwonią bez udziału executora - wynik
+     * newConnectionAsync przekazywany jest bezpośrednio do próby połączenia.
+     */
+    @Override
+    public int phoneRegistration(String number, AsyncPhoneInterface phone) {
+        return this.phoneRegistration(number, AsyncPhoneInterface.blocking(phone), phone);
     }
 
+    /**
+     * Rejestracja partii telefonów: tablica uchwytów rozszerzana jest raz,
+     * rejestracje wykonywane są równolegle, a na utrwalenie w dzienniku czeka
+     * się jednokrotnie, po całej partii.
+     */
     @Override
-    public void phoneRegistration(String number, PhoneInterface phone) {
-        this.registeredPhones.putIfAbsent(number, new Account(phone, number));
+    public int[] phoneRegistration(String[] numbers, PhoneInterface[] phones) {
+        if (numbers.length != phones.length)
+            throw new IllegalArgumentException("numbers.length != phones.length");
+        this.accounts.ensureCapacity(this.accountIds.get() + numbers.length);
+        int[] handles = new int[numbers.length];
+        IntStream.range(0, numbers.length).parallel().forEach(i -> {
+            long startedAt = AccountingSystemMetrics.start();
+            handles[i] = this.register(numbers[i], phones[i], null);
+            this.metrics.record(AccountingSystemMetrics.Operation.PHONE_REGISTRATION, startedAt, true);
+        });
+        if (this.journal != null)
+            this.journal.awaitDurable(this.journal.getLastSequence());
+        return handles;
+    }
+
+    private int phoneRegistration(String number, PhoneInterface phone, AsyncPhoneInterface asyncPhone) {
+        long startedAt = AccountingSystemMetrics.start();
+        int handle = this.register(number, phone, asyncPhone);
+        if (this.journal != null)
+            this.journal.awaitDurable(this.journal.getLastSequence());
+        this.metrics.record(AccountingSystemMetrics.Operation.PHONE_REGISTRATION, startedAt, true);
+        return handle;
+    }
+
+    /**
+     * Rejestruje numer bez oczekiwania na utrwalenie wpisu w dzienniku.
+     */
+    private int register(String number, PhoneInterface phone, AsyncPhoneInterface asyncPhone) {
+        Account account = this.registeredPhones.computeIfAbsent(number, n -> {
+            Account created = new Account(phone, asyncPhone, n, this.accountIds.getAndIncrement());
+            this.accounts.set(created.id, created);
+            if (this.journal != null)
+                this.journal.registration(created.id, n);
+            return created;
+        });
+        if (account.getPhone() == null) {
+            account.asyncPhone = asyncPhone;
+            account.phone = phone;
+        }
+        return account.id;
     }
 
     @Override
     public long subscriptionPurchase(String number, long time) {
-        if (this.registeredPhones.isEmpty())
-            return 0L;
-        Account account = this.registeredPhones.get(number);
-        if (account != null)
-            return account.addTime(time);
-        else
-            return 0L;
+        return this.subscriptionPurchase(this.registeredPhones.get(number), time);
+    }
+
+    @Override
+    public long subscriptionPurchase(int handle, long time) {
+        return this.subscriptionPurchase(this.accounts.get(handle), time);
+    }
+
+    /**
+     * Zakupy wykonywane są równolegle; na utrwalenie w dzienniku czeka się
+     * jednokrotnie, po całej partii.
+     */
+    @Override
+    public long[] subscriptionPurchase(String[] numbers, long[] times) {
+        if (numbers.length != times.length)
+            throw new IllegalArgumentException("numbers.length != times.length");
+        long[] remainingTimes = new long[numbers.length];
+        IntStream.range(0, numbers.length).parallel().forEach(i -> {
+            long startedAt = AccountingSystemMetrics.start();
+            Account account = this.registeredPhones.get(numbers[i]);
+            if (account != null)
+                this.purchase(account, times[i], remainingTimes, i);
+            else
+                remainingTimes[i] = NOT_REGISTERED;
+            this.metrics.record(AccountingSystemMetrics.Operation.SUBSCRIPTION_PURCHASE, startedAt, account != null);
+        });
+        if (this.journal != null)
+            this.journal.awaitDurable(this.journal.getLastSequence());
+        return remainingTimes;
+    }
+
+    private long subscriptionPurchase(Account account, long time) {
+        long startedAt = AccountingSystemMetrics.start();
+        long remainingTime = 0L;
+        if (account != null) {
+            long[] result = new long[1];
+            long sequence = this.purchase(account, time, result, 0);
+            if (this.journal != null)
+                this.journal.awaitDurable(sequence);
+            remainingTime = result[0];
+        }
+        this.metrics.record(AccountingSystemMetrics.Operation.SUBSCRIPTION_PURCHASE, startedAt, account != null);
+        return remainingTime;
+    }
+
+    /**
+     * Zakup bez oczekiwania na utrwalenie w dzienniku.
+     *
+     * @param remainingTimes tablica, do której pod indeksem index trafia
+     *                       pozostały czas konta
+     * @return numer rekordu dziennika, na którego utrwalenie należy poczekać;
+     *         -1, gdy dziennik jest wyłączony
+     */
+    private long purchase(Account account, long time, long[] remainingTimes, int index) {
+        AccountingSystemEvents.Purchase event = new AccountingSystemEvents.Purchase();
+        event.begin();
+        long sequence = this.journal == null ? -1L : this.journal.purchase(account.id, time);
+        StampedLock gate = this.snapshotGate(account);
+        long stamp = gate.readLock();
+        try {
+            remainingTimes[index] = account.addTime(time);
+        } finally {
+            gate.unlockRead(stamp);
+        }
+        event.report(account.id, time, remainingTimes[index]);
+        return sequence;
     }
 
     @Override
     public Optional<Long> getRemainingTime(String number) {
-        if (this.registeredPhones.isEmpty())
-            return Optional.empty();
-        else if (!this.registeredPhones.containsKey(number))
-            return Optional.empty();
-        return Optional.ofNullable(this.registeredPhones.get(number).getRemainingTime());
+        return this.getRemainingTime(this.registeredPhones.get(number));
+    }
+
+    @Override
+    public Optional<Long> getRemainingTime(int handle) {
+        return this.getRemainingTime(this.accounts.get(handle));
+    }
+
+    private Optional<Long> getRemainingTime(Account account) {
+        long startedAt = AccountingSystemMetrics.start();
+        Optional<Long> remainingTime = account == null ? Optional.empty() : Optional.of(account.getRemainingTime());
+        this.metrics.record(AccountingSystemMetrics.Operation.GET_REMAINING_TIME, startedAt, remainingTime.isPresent());
+        return remainingTime;
     }
 
     @Override
     public boolean connection(String numberFrom, String numberTo) {
-        synchronized (this.lock1) {
-            if (!this.registeredPhones.containsKey(numberFrom) || !this.registeredPhones.containsKey(numberTo))
-                return false;
+        return this.connection(this.connectionAsync(numberFrom, numberTo));
+    }
+
+    @Override
+    public boolean connection(int handleFrom, int handleTo) {
+        return this.connection(this.connectionAsync(handleFrom, handleTo));
+    }
+
+    private boolean connection(CompletableFuture<Boolean> result) {
+        try {
+            return result.get();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> connectionAsync(String numberFrom, String numberTo) {
+        return this.connectionAsync(this.registeredPhones.get(numberFrom), this.registeredPhones.get(numberTo));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> connectionAsync(int handleFrom, int handleTo) {
+        return this.connectionAsync(this.accounts.get(handleFrom), this.accounts.get(handleTo));
+    }
+
+    private CompletableFuture<Boolean> connectionAsync(Account caller, Account callee) {
+        long startedAt = AccountingSystemMetrics.start();
+        AccountingSystemEvents.Connection event = AccountingSystemEvents.beginConnection();
+        if (caller == null || callee == null)
+            return this.rejectConnection(caller, callee, startedAt, event);
+
+        if (caller.getRemainingTime() <= 0L || caller.getPhone() == null || callee.getPhone() == null)
+            return this.rejectConnection(caller, callee, startedAt, event);
+
+        if (!this.startRinging(caller, callee))
+            return this.rejectConnection(caller, callee, startedAt, event);
+        if (!this.admitRinging()) {
+            this.hangUp(caller, callee);
+            this.metrics.callShed();
+            return this.rejectConnection(caller, callee, startedAt, event);
+        }
+        this.metrics.ringingStarted();
+
+        CompletableFuture<Boolean> ringing = new CompletableFuture<>();
+        AsyncPhoneInterface asyncPhone = callee.getAsyncPhone();
+        Future<?> task;
+        try {
+            task = asyncPhone != null ? this.ringAsync(caller, callee, asyncPhone, ringing)
+                    : this.ring(caller, callee, ringing);
+        } catch (RejectedExecutionException e) {
+            this.establishConnection(caller, callee, false);
+            this.metrics.callShed();
+            return this.rejectConnection(caller, callee, startedAt, event);
+        }
+        TimingWheel.Timeout timeout = this.ringTimeout <= 0L || ringing.isDone() ? null
+                : this.timer.schedule(() -> this.ringTimedOut(ringing, task), this.ringTimeout);
+
+        return ringing.handle((accepted, e) -> {
+            if (timeout != null)
+                timeout.cancel();
+            if (e != null)
+                e.printStackTrace();
+            boolean connected = this.establishConnection(caller, callee, e == null && accepted);
+            this.metrics.record(AccountingSystemMetrics.Operation.CONNECTION, startedAt, connected);
+            if (event != null)
+                event.report(caller.id, callee.id, connected);
+            return connected;
+        });
+    }
+
+    /**
+     * Wywołuje blokujące newConnection w wątku executora.
+     *
+     * @return zadanie executora, przerywane po upływie ringTimeout
+     */
+    private Future<?> ring(Account caller, Account callee, CompletableFuture<Boolean> ringing) {
+        long submittedAt = AccountingSystemMetrics.start();
+        AccountingSystemEvents.CallbackQueue queueEvent = AccountingSystemEvents.beginCallbackQueue();
+        return this.executorService.submit(() -> {
+            this.metrics.record(AccountingSystemMetrics.Operation.CALLBACK_QUEUE, submittedAt, true);
+            if (queueEvent != null)
+                queueEvent.report(caller.id, callee.id);
+
+            long ringingAt = AccountingSystemMetrics.start();
+            AccountingSystemEvents.Ringing ringingEvent = new AccountingSystemEvents.Ringing();
+            ringingEvent.begin();
+            try {
+                boolean accepted = callee.getPhone().newConnection(caller.number);
+                ringingEvent.report(caller.id, callee.id, accepted);
+                this.metrics.record(AccountingSystemMetrics.Operation.RINGING, ringingAt, accepted);
+                ringing.complete(accepted);
+            } catch (Throwable e) {
+                ringingEvent.report(caller.id, callee.id, false);
+                this.metrics.record(AccountingSystemMetrics.Operation.RINGING, ringingAt, false);
+                ringing.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Wywołuje newConnectionAsync w wątku zestawiającym połączenie; do
+     * czasu decyzji użytkownika próba połączenia nie zajmuje żadnego wątku.
+     * Wyjątek lub null zwrócone przez telefon kończą próbę odrzuceniem.
+     *
+     * @return obiekt zwrócony przez telefon, jeśli jest typu Future (anulowany
+     *         po upływie ringTimeout), w przeciwnym przypadku null
+     */
+    private Future<?> ringAsync(Account caller, Account callee, AsyncPhoneInterface phone,
+            CompletableFuture<Boolean> ringing) {
+        long ringingAt = AccountingSystemMetrics.start();
+        AccountingSystemEvents.Ringing ringingEvent = AccountingSystemEvents.beginRinging();
+        CompletionStage<Boolean> decision;
+        try {
+            decision = phone.newConnectionAsync(caller.number);
+            if (decision == null)
+                decision = CompletableFuture.failedFuture(
+                        new NullPointerException("newConnectionAsync zwróciło null"));
+        } catch (Throwable e) {
+            decision = CompletableFuture.failedFuture(e);
+        }
+        decision.whenComplete((accepted, e) -> {
+            boolean connected = e == null && Boolean.TRUE.equals(accepted);
+            if (ringingEvent != null)
+                ringingEvent.report(caller.id, callee.id, connected);
+            this.metrics.record(AccountingSystemMetrics.Operation.RINGING, ringingAt, connected);
+            if (e != null)
+                ringing.completeExceptionally(e);
+            else
+                ringing.complete(connected);
+        });
+        return decision instanceof Future ? (Future<?>) decision : null;
+    }
+
+    /**
+     * Kończy odrzuceniem próbę połączenia, której newConnection nie zwróciło
+     * wyniku w czasie ringTimeout. Wątek executora wykonujący newConnection
+     * jest przerywany (a wynik newConnectionAsync anulowany), oba numery
+     * zwalniane.
+     */
+    private void ringTimedOut(CompletableFuture<Boolean> ringing, Future<?> task) {
+        if (!ringing.complete(false))
+            return;
+        this.metrics.ringTimedOut();
+        if (task != null)
+            task.cancel(true);
+    }
+
+    private CompletableFuture<Boolean> rejectConnection(Account caller, Account callee, long startedAt,
+            AccountingSystemEvents.Connection event) {
+        this.metrics.record(AccountingSystemMetrics.Operation.CONNECTION, startedAt, false);
+        if (event != null)
+            event.report(caller == null ? -1 : caller.id, callee == null ? -1 : callee.id, false);
+        return CompletableFuture.completedFuture(false);
+    }
 
-            if (this.registeredPhones.get(numberFrom).getRemainingTime() <= 0L)
+    /**
+     * Zajmuje miejsce w limicie maxRingingCalls. Zwalniane jest w
+     * establishConnection, gdy próba połączenia zostaje rozstrzygnięta.
+     */
+    private boolean admitRinging() {
+        while (true) {
+            int ringing = this.ringingCalls.get();
+            if (ringing >= this.maxRingingCalls)
                 return false;
+            if (this.ringingCalls.compareAndSet(ringing, ringing + 1))
+                return true;
         }
-        Future<Boolean> fromCallResult = null;
+    }
 
-        synchronized (this.lock2) {
-            if (!this.currentConnections.containsKey(numberTo) && !this.currentConnections.containsValue(numberTo)) {
-                if (awaitingCalls.contains(numberTo) || awaitingCalls.contains(numberFrom))
-                    return false;
+    /**
+     * Zmiany stanu kont wykonywane są pod blokadą odczytu bramki obrazów, więc
+     * obraz tworzony przez snapshot nigdy nie obejmuje tylko części zmiany
+     * obejmującej oba konta, a zmiana nie może zostać oznaczona epoką sprzed
+     * obrazu, gdy nastąpiła już po nim. Bramka podzielona jest na paski
+     * wybierane według konta rozpoczynającego zmianę, więc niezależne zmiany
+     * nie konkurują o jedną blokadę; snapshot zajmuje wszystkie paski.
+     */
+    private StampedLock snapshotGate(Account account) {
+        return this.snapshotGates[account.id & (this.snapshotGates.length - 1)];
+    }
 
-                fromCallResult = executorService.submit(() -> this.registeredPhones.get(numberTo).getPhone().newConnection(numberFrom));
-                awaitingCalls.add(numberFrom);
-                awaitingCalls.add(numberTo);
+    private boolean startRinging(Account caller, Account callee) {
+        StampedLock gate = this.snapshotGate(caller);
+        long stamp = gate.readLock();
+        try {
+            if (!caller.startRinging())
+                return false;
+            if (!callee.startRinging()) {
+                caller.hangUp();
+                return false;
             }
+            return true;
+        } finally {
+            gate.unlockRead(stamp);
         }
+    }
 
+    private void hangUp(Account caller, Account callee) {
+        StampedLock gate = this.snapshotGate(caller);
+        long stamp = gate.readLock();
         try {
-            if (fromCallResult.get()) {
-                synchronized (this.lock3) {
-                    if (!this.currentConnections.containsKey(numberTo) &&
-                            !this.currentConnections.containsValue(numberTo) &&
-                            !this.currentConnections.containsKey(numberFrom) &&
-                            !this.currentConnections.containsValue(numberFrom)
-                    )
-                        this.currentConnections.put(numberFrom, numberTo);
-
-                    synchronized (this.lock1) {
-                        awaitingCalls.remove(numberFrom);
-                        awaitingCalls.remove(numberTo);
-                        this.registeredPhones.get(numberFrom).call();
-                        this.billing.put(numberFrom, numberTo);
-
-                        return true;
-                    }
-                }
+            callee.hangUp();
+            caller.hangUp();
+        } finally {
+            gate.unlockRead(stamp);
+        }
+    }
+
+    private boolean establishConnection(Account caller, Account callee, boolean accepted) {
+        this.ringingCalls.decrementAndGet();
+        this.metrics.ringingFinished(accepted);
+        if (!accepted) {
+            this.hangUp(caller, callee);
+            return false;
+        }
+
+        Connection connection = new Connection(caller, callee);
+        if (this.journal != null) {
+            try {
+                this.journal.connection(caller.id, callee.id);
+            } catch (RuntimeException e) {
+                this.hangUp(caller, callee);
+                throw e;
             }
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
         }
-        return false;
+        StampedLock gate = this.snapshotGate(caller);
+        long stamp = gate.readLock();
+        try {
+            caller.answer(connection, true);
+            callee.answer(connection, false);
+        } finally {
+            gate.unlockRead(stamp);
+        }
+        caller.scheduleAutoDisconnection(connection);
+        return true;
     }
 
     @Override
     public void disconnection(String number) {
-        synchronized (this.lock2) {
-            if (this.currentConnections.containsKey(number) || this.currentConnections.containsValue(number)) {
-                String numberTo = this.currentConnections.get(number);
-                this.registeredPhones.get(number).stopConnection();
-                this.registeredPhones.get(numberTo).stopConnection();
-
-                this.registeredPhones.get(number).getPhone().connectionClosed(numberTo);
-                this.registeredPhones.get(numberTo).getPhone().connectionClosed(number);
-                this.currentConnections.remove(number);
-                this.billing.put(number, numberTo, this.registeredPhones.get(number).getRemainingTime());
-            }
+        this.disconnection(this.registeredPhones.get(number));
+    }
+
+    @Override
+    public void disconnection(int handle) {
+        this.disconnection(this.accounts.get(handle));
+    }
+
+    private void disconnection(Account account) {
+        long startedAt = AccountingSystemMetrics.start();
+        Connection connection = account == null ? null : account.getConnection();
+        if (connection != null)
+            this.disconnection(connection, startedAt, false);
+        else
+            this.metrics.record(AccountingSystemMetrics.Operation.DISCONNECTION, startedAt, false);
+    }
+
+    private void automaticDisconnection(Connection connection) {
+        this.disconnection(connection, AccountingSystemMetrics.start(), true);
+    }
+
+    private void disconnection(Connection connection, long startedAt, boolean automatic) {
+        AccountingSystemEvents.Disconnection event = new AccountingSystemEvents.Disconnection();
+        event.begin();
+        if (!connection.close()) {
+            this.metrics.record(AccountingSystemMetrics.Operation.DISCONNECTION, startedAt, false);
+            return;
         }
+        this.metrics.callFinished();
+
+        Account caller = connection.getCaller();
+        Account callee = connection.getCallee();
+        long duration;
+        StampedLock gate = this.snapshotGate(caller);
+        long stamp = gate.readLock();
+        try {
+            duration = caller.stopConnection();
+            caller.hangUp();
+            callee.hangUp();
+            this.billing.add(caller.id, callee.id, duration);
+        } finally {
+            gate.unlockRead(stamp);
+        }
+        try {
+            if (this.journal != null)
+                this.journal.awaitDurable(this.journal.disconnection(caller.id, callee.id, duration));
+        } finally {
+            caller.connectionClosed(callee.number);
+            callee.connectionClosed(caller.number);
+        }
+        this.metrics.record(AccountingSystemMetrics.Operation.DISCONNECTION, startedAt, true);
+        event.report(caller.id, callee.id, duration, automatic);
     }
 
     @Override
     public Optional<Long> getBilling(String numberFrom, String numberTo) {
-        return Optional.ofNullable(this.billing.get(numberFrom, numberTo));
+        return this.getBilling(this.registeredPhones.get(numberFrom), this.registeredPhones.get(numberTo));
+    }
+
+    @Override
+    public Optional<Long> getBilling(int handleFrom, int handleTo) {
+        return this.getBilling(this.accounts.get(handleFrom), this.accounts.get(handleTo));
+    }
+
+    private Optional<Long> getBilling(Account caller, Account callee) {
+        long startedAt = AccountingSystemMetrics.start();
+        Optional<Long> billing = caller == null || callee == null ? Optional.empty()
+                : Optional.of(this.billing.get(caller.id, callee.id));
+        this.metrics.record(AccountingSystemMetrics.Operation.GET_BILLING, startedAt, billing.isPresent());
+        return billing;
     }
 
     @Override
     public Optional<Boolean> isConnected(String number) {
-        if (this.currentConnections.containsKey(number) || this.currentConnections.containsValue(number))
-            return Optional.of(true);
-        else if (!this.registeredPhones.containsKey(number))
-            return Optional.empty();
-        else
-            return Optional.of(false);
+        return this.isConnected(this.registeredPhones.get(number));
     }
 
-    class Account {
-        private PhoneInterface phone;
-        private Long remainingTime;
+    @Override
+    public Optional<Boolean> isConnected(int handle) {
+        return this.isConnected(this.accounts.get(handle));
+    }
 
-        private volatile long closedAt;
-        private volatile long startedAt;
-        private volatile long currentTime;
+    private Optional<Boolean> isConnected(Account account) {
+        long startedAt = AccountingSystemMetrics.start();
+        Optional<Boolean> connected = account == null ? Optional.empty()
+                : account.isConnected() ? IS_CONNECTED : IS_NOT_CONNECTED;
+        this.metrics.record(AccountingSystemMetrics.Operation.IS_CONNECTED, startedAt, connected.isPresent());
+        return connected;
+    }
 
-        private final String number;
+    /**
+     * Tworzy spójny obraz sald, trwających połączeń i bilingu z bieżącej
+     * chwili. Zmiany stanu wstrzymywane są tylko na czas zmiany epoki obrazów;
+     * samo tworzenie nie kopiuje stanu: konto lub segment bilingu kopiowane są
+     * dopiero przy pierwszej zmianie po utworzeniu obrazu. Obraz można
+     * przeglądać dowolnie długo przy trwającym ruchu; należy go zamknąć, gdy
+     * nie jest już potrzebny.
+     */
+    public Snapshot snapshot() {
+        long[] stamps = new long[this.snapshotGates.length];
+        for (int i = 0; i < stamps.length; i++)
+            stamps[i] = this.snapshotGates[i].writeLock();
+        try {
+            Snapshot snapshot = new Snapshot(this, this.snapshotEpoch + 1, this.timeSource.currentMillis(),
+                    this.accountIds.get(), this.billing.snapshot());
+            this.snapshots.add(snapshot);
+            this.snapshotEpoch = snapshot.epoch;
+            return snapshot;
+        } finally {
+            for (int i = stamps.length - 1; i >= 0; i--)
+                this.snapshotGates[i].unlockWrite(stamps[i]);
+        }
+    }
 
-        private AtomicBoolean isRunning;
+    /**
+     * @return liczniki i histogramy czasów operacji, publikowane również przez
+     *         JMX, jeśli włączono to w AccountingSystemConfig
+     */
+    public AccountingSystemMetrics getMetrics() {
+        return this.metrics;
+    }
 
-        public Account(PhoneInterface phone, String number) {
-            this.phone = phone;
-            this.isRunning = new AtomicBoolean(false);
-            this.number = number;
+    /**
+     * Zamyka dziennik, zatrzymuje wątek automatycznego rozłączania,
+     * wyrejestrowuje AccountingSystemMetrics z JMX i zamyka executor
+     * utworzony przez system (executora z ustawień nie zamyka).
+     */
+    @Override
+    public void close() {
+        this.metrics.unregister();
+        this.timer.close();
+        if (this.journal != null)
+            this.journal.close();
+        if (this.ownsExecutorService)
+            this.executorService.shutdown();
+    }
+
+    /**
+     * Obraz stanu AccountingSystem z chwili wywołania snapshot. Numery
+     * zarejestrowane później nie należą do obrazu.
+     */
+    public static final class Snapshot implements AutoCloseable {
+
+        /**
+         * Odbiorca kolejnych kont odwiedzanych przez forEachAccount.
+         */
+        public interface AccountVisitor {
+            void visit(String number, long remainingTime, boolean connected);
         }
 
-        public PhoneInterface getPhone() {
-            return phone;
+        /**
+         * Odbiorca par numerów odwiedzanych przez forEachCall i forEachBilling.
+         * Dla forEachCall time to czas trwania połączenia w chwili utworzenia
+         * obrazu, dla forEachBilling - suma czasów zakończonych połączeń.
+         */
+        public interface PairVisitor {
+            void visit(String numberFrom, String numberTo, long time);
+        }
+
+        private final AccountingSystem system;
+        private final long epoch;
+        private final long takenAt;
+        private final int size;
+        private final HandleTable<AccountState> preserved;
+        private final BillingMatrix.Snapshot billing;
+
+        private Snapshot(AccountingSystem system, long epoch, long takenAt, int size, BillingMatrix.Snapshot billing) {
+            this.system = system;
+            this.epoch = epoch;
+            this.takenAt = takenAt;
+            this.size = size;
+            this.preserved = new HandleTable<>();
+            this.billing = billing;
         }
 
-        public Long getRemainingTime() {
-            return this.remainingTime;
+        /**
+         * @return chwila utworzenia obrazu według TimeSource systemu
+         */
+        public long getTakenAt() {
+            return this.takenAt;
         }
 
-        public Long addTime(Long time) {
-            if (this.remainingTime == null)
-                this.remainingTime = 0L;
-            this.remainingTime += time;
-            return this.remainingTime;
+        public Optional<Long> getRemainingTime(String number) {
+            AccountState image = this.image(number);
+            return image == null ? Optional.empty() : Optional.of(image.remainingTime(this.takenAt));
         }
 
-        public void call() {
-            this.isRunning.set(true);
+        public Optional<Boolean> isConnected(String number) {
+            AccountState image = this.image(number);
+            return image == null ? Optional.empty() : Optional.of(image.isConnected());
+        }
 
-            synchronized (this) {
-                this.closedAt = 0L;
-            }
-            new Thread(() -> {
-                this.startedAt = this.getMilli();
-                while (this.isRunning.get()) {
-                    try {
-                        this.currentTime = this.getMilli();
-                        this.autoDisconnectionProcess();
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-                this.evaluateRemainingTime();
+        public Optional<Long> getBilling(String numberFrom, String numberTo) {
+            Account caller = this.account(numberFrom);
+            Account callee = this.account(numberTo);
+            if (caller == null || callee == null)
+                return Optional.empty();
+            return Optional.of(this.billing.get(caller.id, callee.id));
+        }
 
-                disconnection(number);
-                this.isRunning.set(false);
-            }).start();
+        public void forEachAccount(AccountVisitor visitor) {
+            for (int id = 0; id < this.size; id++) {
+                AccountState image = this.image(id);
+                if (image != null)
+                    visitor.visit(this.system.accounts.get(id).number, image.remainingTime(this.takenAt),
+                            image.isConnected());
+            }
         }
 
-        private void autoDisconnectionProcess() throws InterruptedException {
-            if (this.currentTime - this.startedAt >= (this.remainingTime)) {
-                this.closedAt = this.getMilli();
-                this.isRunning.set(false);
+        /**
+         * Odwiedza połączenia trwające w chwili utworzenia obrazu.
+         */
+        public void forEachCall(PairVisitor visitor) {
+            for (int id = 0; id < this.size; id++) {
+                AccountState image = this.image(id);
+                if (image != null && image.isConnected() && image.connection.getCaller().id == id)
+                    visitor.visit(image.connection.getCaller().number, image.connection.getCallee().number,
+                            image.used(this.takenAt));
             }
-            Thread.sleep(10);
         }
 
-        private void evaluateRemainingTime() {
-            this.remainingTime = this.remainingTime - ((this.closedAt - this.startedAt));
+        public void forEachBilling(PairVisitor visitor) {
+            this.billing.forEach((numberFrom, numberTo, total) -> visitor.visit(
+                    this.system.accounts.get(numberFrom).number, this.system.accounts.get(numberTo).number, total));
+        }
 
-            if (this.remainingTime < 0L)
-                this.remainingTime = 0L;
+        /**
+         * Kończy kopiowanie zmienianych kont i segmentów bilingu do obrazu.
+         */
+        @Override
+        public void close() {
+            this.system.snapshots.remove(this);
+            this.billing.close();
         }
 
-        private void stopConnection() {
-            this.closedAt = this.getMilli();
-            this.isRunning.set(false);
+        private Account account(String number) {
+            Account account = number == null ? null : this.system.registeredPhones.get(number);
+            return account == null || account.id >= this.size ? null : account;
         }
 
-        private long getMilli() {
-            return System.currentTimeMillis();
+        private AccountState image(String number) {
+            Account account = this.account(number);
+            return account == null ? null : this.image(account.id);
+        }
+
+        private AccountState image(int id) {
+            if (id >= this.size)
+                return null;
+            AccountState image = this.preserved.get(id);
+            if (image != null)
+                return image;
+            Account account = this.system.accounts.get(id);
+            if (account == null)
+                return null;
+            image = account.image(this.epoch);
+            return image != null ? image : this.preserved.get(id);
         }
     }
 
-    public static class CallHistory {
-        private String numberFrom;
-        private String numberTo;
+    /**
+     * Niezmienny stan konta. Ten sam obiekt służy jako stan zapisany w
+     * obrazach; epoch to epoka obrazów, w której stan utworzono.
+     */
+    private static final class AccountState {
+        private final int state;
+        private final long balance;
+        private final long reservedAt;
+        private final Connection connection;
+        private final long epoch;
+
+        AccountState(int state, long balance, long reservedAt, Connection connection, long epoch) {
+            this.state = state;
+            this.balance = balance;
+            this.reservedAt = reservedAt;
+            this.connection = connection;
+            this.epoch = epoch;
+        }
 
-        public CallHistory(String numberFrom, String numberTo) {
-            this.numberFrom = numberFrom;
-            this.numberTo = numberTo;
+        /**
+         * @return czas połączenia trwającego od reservedAt w chwili now,
+         *         ograniczony saldem; 0, gdy połączenie nie trwa
+         */
+        long used(long now) {
+            if (this.reservedAt == NOT_RESERVED)
+                return 0L;
+            return Math.min(Math.max(0L, this.balance), Math.max(0L, now - this.reservedAt));
         }
 
-        public static CallHistory make(String numberFrom, String numberTo) {
-            return new CallHistory(numberFrom, numberTo);
+        long remainingTime(long now) {
+            return this.balance - this.used(now);
+        }
+
+        boolean isConnected() {
+            return this.state == Account.CONNECTED && this.connection != null;
+        }
+    }
+
+    /**
+     * Odtwarza stan systemu ze zdarzeń zapisanych w dzienniku. Telefony
+     * odtworzonych numerów dołączane są przy ponownej rejestracji.
+     */
+    class Recovery implements Journal.Listener {
+        @Override
+        public void registration(int id, String number) {
+            Account account = new Account(null, null, number, id);
+            registeredPhones.put(number, account);
+            accounts.set(id, account);
+            accountIds.accumulateAndGet(id + 1, Math::max);
+        }
+
+        @Override
+        public void purchase(int id, long time) {
+            accounts.get(id).addTime(time);
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            CallHistory that = (CallHistory) o;
-            return Objects.equals(numberFrom, that.numberFrom) &&
-                    Objects.equals(numberTo, that.numberTo);
+        public void connection(int idFrom, int idTo) {
         }
 
         @Override
-        public int hashCode() {
-            return Objects.hash(numberFrom, numberTo);
+        public void disconnection(int idFrom, int idTo, long duration) {
+            accounts.get(idFrom).addTime(-duration);
+            billing.add(idFrom, idTo, duration);
+        }
+
+        @Override
+        public void billing(int idFrom, int idTo, long total) {
+            billing.add(idFrom, idTo, total);
+        }
+    }
+
+    class Connection {
+        private final Account caller;
+        private final Account callee;
+        private final AtomicBoolean closed;
+
+        public Connection(Account caller, Account callee) {
+            this.caller = caller;
+            this.callee = callee;
+            this.closed = new AtomicBoolean(false);
+        }
+
+        public Account getCaller() {
+            return caller;
+        }
+
+        public Account getCallee() {
+            return callee;
+        }
+
+        public boolean close() {
+            return this.closed.compareAndSet(false, true);
+        }
+
+        public boolean isClosed() {
+            return this.closed.get();
         }
     }
 
-    class ConcurrentCallMap extends ConcurrentHashMap<CallHistory, Long> {
-        public Long get(String numberFrom, String numberTo) {
-            CallHistory call = CallHistory.make(numberFrom, numberTo);
-            return this.get(call);
+    /**
+     * Konto numeru. Stan połączenia, saldo, chwila rozpoczęcia rozliczanego
+     * połączenia i samo połączenie zapisane są w niezmiennym obiekcie
+     * AccountState podmienianym jednym CAS. Odczyt to pojedyncze get: nie
+     * blokuje zapisów, nie tworzy obiektów i zawsze widzi spójny stan.
+     */
+    class Account {
+        private static final int IDLE = 0;
+        private static final int RINGING = 1;
+        private static final int CONNECTED = 2;
+
+        private volatile PhoneInterface phone;
+        private volatile AsyncPhoneInterface asyncPhone;
+
+        private final AtomicReference<AccountState> current;
+
+        private Connection reservedFor;
+        private TimingWheel.Timeout autoDisconnection;
+
+        private final String number;
+        private final int id;
+
+        private final PhoneNotifier notifier;
+
+        public Account(PhoneInterface phone, AsyncPhoneInterface asyncPhone, String number, int id) {
+            this.phone = phone;
+            this.asyncPhone = asyncPhone;
+            this.current = new AtomicReference<>(
+                    new AccountState(IDLE, 0L, NOT_RESERVED, null, snapshotEpoch));
+            this.number = number;
+            this.id = id;
+            this.notifier = new PhoneNotifier(executorService);
+        }
+
+        public PhoneInterface getPhone() {
+            return phone;
+        }
+
+        /**
+         * @return nieblokujący interfejs telefonu lub null, jeśli telefon
+         *         zarejestrowano jako PhoneInterface
+         */
+        public AsyncPhoneInterface getAsyncPhone() {
+            return asyncPhone;
+        }
+
+        /**
+         * @return saldo pomniejszone o czas trwającego połączenia
+         */
+        public long getRemainingTime() {
+            return this.current.get().remainingTime(this.getMilli());
+        }
+
+        /**
+         * Zmienia saldo. W trakcie połączenia termin automatycznego rozłączenia
+         * jest przeliczany według nowego salda.
+         *
+         * @return saldo pomniejszone o czas trwającego połączenia
+         */
+        public long addTime(long time) {
+            long now = this.getMilli();
+            AccountState current;
+            AccountState updated;
+            do {
+                current = this.current.get();
+                updated = this.next(current.state, current.balance + time, current.reservedAt,
+                        current.connection);
+            } while (!this.replace(current, updated));
+            if (updated.reservedAt != NOT_RESERVED)
+                this.scheduleAutoDisconnection();
+            return updated.remainingTime(now);
+        }
+
+        public boolean startRinging() {
+            AccountState current;
+            do {
+                current = this.current.get();
+                if (current.state != IDLE)
+                    return false;
+            } while (!this.replace(current,
+                    this.next(RINGING, current.balance, current.reservedAt, current.connection)));
+            return true;
+        }
+
+        /**
+         * Kończy dzwonienie nawiązaniem połączenia, o ile konto nadal dzwoni,
+         * a połączenie nie zostało w międzyczasie zakończone.
+         *
+         * @param reserve true dla dzwoniącego - rezerwuje saldo dla połączenia
+         *                rozpoczynanego w tej chwili
+         */
+        public void answer(Connection connection, boolean reserve) {
+            long now = this.getMilli();
+            AccountState current;
+            do {
+                current = this.current.get();
+                if (current.state != RINGING || connection.isClosed())
+                    return;
+            } while (!this.replace(current, this.next(CONNECTED, current.balance,
+                    reserve ? now : current.reservedAt, connection)));
+        }
+
+        public void hangUp() {
+            AccountState current;
+            do {
+                current = this.current.get();
+            } while (!this.replace(current, this.next(IDLE, current.balance, current.reservedAt, null)));
         }
 
-        public void put(String numberFrom, String numberTo) {
-            CallHistory call = CallHistory.make(numberFrom, numberTo);
-            Long currentBilling = 0L;
-            if (this.contains(call)) {
-                currentBilling = this.get(call);
+        public boolean isConnected() {
+            return this.current.get().state == CONNECTED;
+        }
+
+        public Connection getConnection() {
+            return this.current.get().connection;
+        }
+
+        /**
+         * Zleca wywołanie connectionClosed telefonu. Powiadomienia jednego
+         * telefonu dostarczane są w kolejności zleceń, poza wątkiem
+         * wywołującym disconnection.
+         */
+        public void connectionClosed(String otherNumber) {
+            PhoneInterface phone = this.phone;
+            this.notifier.submit(() -> {
+                long startedAt = AccountingSystemMetrics.start();
+                phone.connectionClosed(otherNumber);
+                metrics.record(AccountingSystemMetrics.Operation.CONNECTION_CLOSED, startedAt, true);
+            });
+        }
+
+        /**
+         * Planuje automatyczne rozłączenie połączenia, gdy obie strony już je
+         * odebrały. Połączenie zakończone wcześniej nie jest planowane.
+         */
+        public void scheduleAutoDisconnection(Connection connection) {
+            synchronized (this) {
+                if (connection.isClosed())
+                    return;
+                this.reservedFor = connection;
             }
-            this.putIfAbsent(call, currentBilling);
+            this.scheduleAutoDisconnection();
         }
 
-        public void put(String numberFrom, String numberTo, Long duration) {
-            CallHistory call = CallHistory.make(numberFrom, numberTo);
-            Long currentBilling = 0L;
-            if (this.contains(call)) {
-                currentBilling = this.get(call);
+        private synchronized void scheduleAutoDisconnection() {
+            if (this.autoDisconnection != null)
+                this.autoDisconnection.cancel();
+            this.autoDisconnection = null;
+            Connection reserved = this.reservedFor;
+            if (reserved != null)
+                this.autoDisconnection = timer.schedule(() -> automaticDisconnection(reserved),
+                        this.getRemainingTime());
+        }
+
+        /**
+         * Rozlicza rezerwację: czas połączenia zdejmowany jest z salda tym
+         * samym CAS, który kończy rezerwację.
+         *
+         * @return czas połączenia lub 0, jeśli nie było rezerwacji
+         */
+        private long stopConnection() {
+            long now = this.getMilli();
+            AccountState current;
+            long duration;
+            do {
+                current = this.current.get();
+                if (current.reservedAt == NOT_RESERVED)
+                    return 0L;
+                duration = current.used(now);
+            } while (!this.replace(current, this.next(current.state, current.balance - duration,
+                    NOT_RESERVED, current.connection)));
+            synchronized (this) {
+                this.reservedFor = null;
+                if (this.autoDisconnection != null)
+                    this.autoDisconnection.cancel();
+                this.autoDisconnection = null;
+            }
+            return duration;
+        }
+
+        /**
+         * @return nowy stan konta, oznaczony bieżącą epoką obrazów
+         */
+        private AccountState next(int state, long balance, long reservedAt, Connection connection) {
+            return new AccountState(state, balance, reservedAt, connection, snapshotEpoch);
+        }
+
+        /**
+         * Podmienia stan konta. Przy pierwszej zmianie po utworzeniu obrazu
+         * zapisuje w nim stan sprzed zmiany.
+         */
+        private boolean replace(AccountState current, AccountState updated) {
+            if (current.epoch != updated.epoch) {
+                for (Snapshot snapshot : snapshots) {
+                    if (snapshot.epoch > current.epoch)
+                        snapshot.preserved.set(this.id, current);
+                }
             }
-            this.put(call, currentBilling + duration);
+            return this.current.compareAndSet(current, updated);
+        }
+
+        /**
+         * @return stan konta, jeśli nie zmienił się od utworzenia obrazu z
+         *         epoki snapshotEpoch, w przeciwnym przypadku null
+         */
+        private AccountState image(long snapshotEpoch) {
+            AccountState current = this.current.get();
+            return current.epoch < snapshotEpoch ? current : null;
+        }
+
+        private long getMilli() {
+            return timeSource.currentMillis();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,144 @@
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Ustawienia AccountingSystem. Niepodane wartości zastępowane są domyślnymi.
+ */
+public class AccountingSystemConfig {
+
+    private static final long DEFAULT_JOURNAL_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private ExecutorService callbackExecutor;
+    private Path journalDirectory;
+    private long journalSegmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+    private TimeSource timeSource;
+    private int shards;
+    private long ringTimeout;
+    private int maxRingingCalls;
+    private boolean jmx;
+
+    /**
+     * @param callbackExecutor executor, w którym wykonywane są metody
+     *                         PhoneInterface, np. jeden z
+     *                         PhoneCallbackExecutors
+     */
+    public AccountingSystemConfig callbackExecutor(ExecutorService callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    /**
+     * @return executor podany w ustawieniach albo nowy executor
+     *         PhoneCallbackExecutors.hostDefault, który zamyka system go
+     *         używający
+     */
+    public ExecutorService getCallbackExecutor() {
+        return this.callbackExecutor != null ? this.callbackExecutor : PhoneCallbackExecutors.hostDefault();
+    }
+
+    /**
+     * @return true, jeśli executor podano w ustawieniach - system go nie zamyka
+     */
+    public boolean hasCallbackExecutor() {
+        return this.callbackExecutor != null;
+    }
+
+    /**
+     * @param journalDirectory katalog dziennika zdarzeń. Stan zapisany w
+     *                         dzienniku odtwarzany jest przy tworzeniu
+     *                         AccountingSystem. Bez tego ustawienia stan nie
+     *                         jest utrwalany.
+     */
+    public AccountingSystemConfig journal(Path journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    /**
+     * @param journalSegmentSize rozmiar w bajtach, po przekroczeniu którego
+     *                           dziennik rozpoczyna nowy segment
+     */
+    public AccountingSystemConfig journalSegmentSize(long journalSegmentSize) {
+        this.journalSegmentSize = journalSegmentSize;
+        return this;
+    }
+
+    /**
+     * @param timeSource źródło czasu, według którego naliczane są opłaty i
+     *                   wykonywane automatyczne rozłączenia, np.
+     *                   VirtualTimeSource w testach
+     */
+    public AccountingSystemConfig timeSource(TimeSource timeSource) {
+        this.timeSource = timeSource;
+        return this;
+    }
+
+    /**
+     * @param shards liczba shardów ShardedAccountingSystem, domyślnie liczba
+     *               rdzeni
+     */
+    public AccountingSystemConfig shards(int shards) {
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * @param ringTimeoutMs czas w ms, po którym nierozstrzygnięte wywołanie
+     *                      newConnection jest przerywane, a próba połączenia
+     *                      kończy się odrzuceniem; wartość &lt;= 0
+     *                      (domyślna) wyłącza limit
+     */
+    public AccountingSystemConfig ringTimeout(long ringTimeoutMs) {
+        this.ringTimeout = ringTimeoutMs;
+        return this;
+    }
+
+    /**
+     * @param maxRingingCalls największa liczba prób połączenia oczekujących
+     *                        jednocześnie na decyzję newConnection. Próby ponad
+     *                        limit są natychmiast odrzucane. Wartość &lt;= 0
+     *                        (domyślna) wyłącza limit.
+     */
+    public AccountingSystemConfig maxRingingCalls(int maxRingingCalls) {
+        this.maxRingingCalls = maxRingingCalls;
+        return this;
+    }
+
+    /**
+     * @param jmx czy rejestrować AccountingSystemMetrics w platformowym
+     *            MBeanServer (domyślnie nie). Zarejestrowany obiekt pozostaje
+     *            w MBeanServer do wywołania close.
+     */
+    public AccountingSystemConfig jmx(boolean jmx) {
+        this.jmx = jmx;
+        return this;
+    }
+
+    public Path getJournalDirectory() {
+        return this.journalDirectory;
+    }
+
+    public long getJournalSegmentSize() {
+        return this.journalSegmentSize;
+    }
+
+    public TimeSource getTimeSource() {
+        return this.timeSource != null ? this.timeSource : TimeSource.system();
+    }
+
+    public long getRingTimeout() {
+        return this.ringTimeout;
+    }
+
+    public int getMaxRingingCalls() {
+        return this.maxRingingCalls > 0 ? this.maxRingingCalls : Integer.MAX_VALUE;
+    }
+
+    public int getShards() {
+        return this.shards > 0 ? this.shards : Runtime.getRuntime().availableProcessors();
+    }
+
+    public boolean isJmx() {
+        return this.jmx;
+    }
+}
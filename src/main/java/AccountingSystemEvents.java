@@ -0,0 +1,196 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Zdarzenia JDK Flight Recorder emitowane przez AccountingSystem. Gdy nagranie
+ * jest wyłączone, shouldCommit zwraca false i pola nie są wypełniane.
+ * Zdarzenia przekazywane do innych wątków (CallbackQueue, Ringing, Connection)
+ * uciekają z metody, która je tworzy, więc JIT nie usunie ich alokacji -
+ * tworzone są metodami begin..., które zwracają null, gdy zdarzenie nie jest
+ * włączone w żadnym nagraniu.
+ */
+public final class AccountingSystemEvents {
+
+    private static final String CATEGORY = "AccountingSystem";
+
+    private static final EventType CALLBACK_QUEUE = EventType.getEventType(CallbackQueue.class);
+    private static final EventType RINGING = EventType.getEventType(Ringing.class);
+    private static final EventType CONNECTION = EventType.getEventType(Connection.class);
+
+    private AccountingSystemEvents() {
+    }
+
+    static CallbackQueue beginCallbackQueue() {
+        if (!CALLBACK_QUEUE.isEnabled())
+            return null;
+        CallbackQueue event = new CallbackQueue();
+        event.begin();
+        return event;
+    }
+
+    static Ringing beginRinging() {
+        if (!RINGING.isEnabled())
+            return null;
+        Ringing event = new Ringing();
+        event.begin();
+        return event;
+    }
+
+    static Connection beginConnection() {
+        if (!CONNECTION.isEnabled())
+            return null;
+        Connection event = new Connection();
+        event.begin();
+        return event;
+    }
+
+    @Name("AccountingSystem.CallbackQueue")
+    @Label("Callback Queue Wait")
+    @Description("Oczekiwanie zadania newConnection w kolejce executora")
+    @Category(CATEGORY)
+    public static class CallbackQueue extends Event {
+        @Label("Caller Id")
+        int callerId;
+
+        @Label("Callee Id")
+        int calleeId;
+
+        void report(int callerId, int calleeId) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.callerId = callerId;
+                this.calleeId = calleeId;
+                this.commit();
+            }
+        }
+    }
+
+    @Name("AccountingSystem.Ringing")
+    @Label("Ringing")
+    @Description("Wykonanie PhoneInterface.newConnection telefonu odbierającego")
+    @Category(CATEGORY)
+    public static class Ringing extends Event {
+        @Label("Caller Id")
+        int callerId;
+
+        @Label("Callee Id")
+        int calleeId;
+
+        @Label("Accepted")
+        boolean accepted;
+
+        void report(int callerId, int calleeId, boolean accepted) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.callerId = callerId;
+                this.calleeId = calleeId;
+                this.accepted = accepted;
+                this.commit();
+            }
+        }
+    }
+
+    @Name("AccountingSystem.Connection")
+    @Label("Connection")
+    @Description("Zestawienie połączenia od wywołania connection do decyzji")
+    @Category(CATEGORY)
+    public static class Connection extends Event {
+        @Label("Caller Id")
+        int callerId;
+
+        @Label("Callee Id")
+        int calleeId;
+
+        @Label("Connected")
+        boolean connected;
+
+        void report(int callerId, int calleeId, boolean connected) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.callerId = callerId;
+                this.calleeId = calleeId;
+                this.connected = connected;
+                this.commit();
+            }
+        }
+    }
+
+    @Name("AccountingSystem.Disconnection")
+    @Label("Disconnection")
+    @Description("Zakończenie i rozliczenie połączenia; connectionClosed dostarczane jest później")
+    @Category(CATEGORY)
+    public static class Disconnection extends Event {
+        @Label("Caller Id")
+        int callerId;
+
+        @Label("Callee Id")
+        int calleeId;
+
+        @Label("Call Duration")
+        @Timespan(Timespan.MILLISECONDS)
+        long callDuration;
+
+        @Label("Automatic")
+        @Description("Rozłączenie po wyczerpaniu środków")
+        boolean automatic;
+
+        void report(int callerId, int calleeId, long callDuration, boolean automatic) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.callerId = callerId;
+                this.calleeId = calleeId;
+                this.callDuration = callDuration;
+                this.automatic = automatic;
+                this.commit();
+            }
+        }
+    }
+
+    @Name("AccountingSystem.Purchase")
+    @Label("Subscription Purchase")
+    @Category(CATEGORY)
+    public static class Purchase extends Event {
+        @Label("Account Id")
+        int accountId;
+
+        @Label("Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long time;
+
+        @Label("Remaining Time")
+        @Timespan(Timespan.MILLISECONDS)
+        long remainingTime;
+
+        void report(int accountId, long time, long remainingTime) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.accountId = accountId;
+                this.time = time;
+                this.remainingTime = remainingTime;
+                this.commit();
+            }
+        }
+    }
+
+    @Name("AccountingSystem.JournalWait")
+    @Label("Journal Durability Wait")
+    @Description("Oczekiwanie na utrwalenie rekordu dziennika (group commit)")
+    @Category(CATEGORY)
+    public static class JournalWait extends Event {
+        @Label("Sequence")
+        long sequence;
+
+        void report(long sequence) {
+            this.end();
+            if (this.shouldCommit()) {
+                this.sequence = sequence;
+                this.commit();
+            }
+        }
+    }
+}
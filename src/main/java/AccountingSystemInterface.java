@@ -1,15 +1,55 @@
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
 
 public interface AccountingSystemInterface {
 
+    /**
+     * Wynik subscriptionPurchase(String[], long[]) dla numeru, który nie jest
+     * zarejestrowany - zakup nie został wykonany.
+     */
+    public static final long NOT_REGISTERED = Long.MIN_VALUE;
+
     /**
      * Metoda rejestruje telefon w systemie. Każdy telefon musi być zarejestrowany
      * przed użyciem.
      * 
      * @param number unikalny numer rejestrowanego telefonu
      * @param phone  interfejs pozwalający na komunikację z telefonem
+     * @return uchwyt numeru - niewielka, nieujemna liczba, którą można
+     *         przekazywać do metod przyjmujących uchwyty zamiast numeru. Ponowna
+     *         rejestracja numeru zwraca ten sam uchwyt.
+     */
+    public int phoneRegistration(String number, PhoneInterface phone);
+
+    /**
+     * Rejestracja telefonu z nieblokującym interfejsem. Domyślna implementacja
+     * rejestruje widok AsyncPhoneInterface.blocking(phone), który zajmuje wątek
+     * na czas oczekiwania na decyzję użytkownika.
+     * 
+     * @see #phoneRegistration(String, PhoneInterface)
+     */
+    public default int phoneRegistration(String number, AsyncPhoneInterface phone) {
+        return this.phoneRegistration(number, AsyncPhoneInterface.blocking(phone));
+    }
+
+    /**
+     * Rejestracja wielu telefonów. Domyślna implementacja wywołuje równolegle
+     * phoneRegistration(String, PhoneInterface) dla kolejnych par.
+     * 
+     * @param numbers numery rejestrowanych telefonów
+     * @param phones  interfejsy telefonów, phones[i] dla numbers[i]
+     * @return uchwyty numerów w kolejności numbers
+     * @throws IllegalArgumentException gdy tablice mają różne długości
      */
-    public void phoneRegistration(String number, PhoneInterface phone);
+    public default int[] phoneRegistration(String[] numbers, PhoneInterface[] phones) {
+        if (numbers.length != phones.length)
+            throw new IllegalArgumentException("numbers.length != phones.length");
+        int[] handles = new int[numbers.length];
+        IntStream.range(0, numbers.length).parallel()
+                .forEach(i -> handles[i] = this.phoneRegistration(numbers[i], phones[i]));
+        return handles;
+    }
 
     /**
      * Wykupienie abonamentu dla podanego numeru telefonu na określony czas
@@ -24,6 +64,33 @@ public interface AccountingSystemInterface {
      */
     public long subscriptionPurchase(String number, long time);
 
+    /**
+     * Odpowiednik subscriptionPurchase(String, long) dla uchwytu zwróconego
+     * przez phoneRegistration.
+     */
+    public long subscriptionPurchase(int handle, long time);
+
+    /**
+     * Wykupienie abonamentów dla wielu numerów. Domyślna implementacja
+     * wywołuje równolegle subscriptionPurchase(String, long) dla kolejnych
+     * zarejestrowanych numerów.
+     * 
+     * @param numbers numery telefonów, których transakcje dotyczą
+     * @param times   wykupiony czas połączenia w msec, times[i] dla numbers[i]
+     * @return wyniki subscriptionPurchase w kolejności numbers; NOT_REGISTERED
+     *         dla numerów niezarejestrowanych
+     * @throws IllegalArgumentException gdy tablice mają różne długości
+     */
+    public default long[] subscriptionPurchase(String[] numbers, long[] times) {
+        if (numbers.length != times.length)
+            throw new IllegalArgumentException("numbers.length != times.length");
+        long[] remainingTimes = new long[numbers.length];
+        IntStream.range(0, numbers.length).parallel()
+                .forEach(i -> remainingTimes[i] = this.getRemainingTime(numbers[i]).isEmpty() ? NOT_REGISTERED
+                        : this.subscriptionPurchase(numbers[i], times[i]));
+        return remainingTimes;
+    }
+
     /**
      * Metoda zwraca pozostały do użycia czas połączeń z numeru number. Wynik
      * podawany jest w msec.
@@ -38,6 +105,12 @@ public interface AccountingSystemInterface {
      */
     public Optional<Long> getRemainingTime(String number);
 
+    /**
+     * Odpowiednik getRemainingTime(String) dla uchwytu zwróconego przez
+     * phoneRegistration.
+     */
+    public Optional<Long> getRemainingTime(int handle);
+
     /**
      * Metoda pozwala zgłosić rozpoczęcie połączenie pomiędzy numerem numberFrom
      * oraz numberTo. Połączenie jest rozpoczynane jeśli oba numery są
@@ -52,6 +125,30 @@ public interface AccountingSystemInterface {
      */
     public boolean connection(String numberFrom, String numberTo);
 
+    /**
+     * Odpowiednik connection(String, String) dla uchwytów zwróconych przez
+     * phoneRegistration.
+     */
+    public boolean connection(int handleFrom, int handleTo);
+
+    /**
+     * Asynchroniczna wersja metody connection. Metoda nie czeka na decyzję
+     * użytkownika telefonu numberTo - zwraca obiekt CompletableFuture, który
+     * zostanie zakończony w chwili odebrania lub odrzucenia połączenia.
+     * 
+     * @param numberFrom numer, który nawiązuje połączenie
+     * @param numberTo   numer, do którego nawiązywane jest połączenie.
+     * @return obiekt CompletableFuture zakończony wartością true jeśli połączenie
+     *         udało się nawiązać, false - w przeciwnym przypadku
+     */
+    public CompletableFuture<Boolean> connectionAsync(String numberFrom, String numberTo);
+
+    /**
+     * Odpowiednik connectionAsync(String, String) dla uchwytów zwróconych przez
+     * phoneRegistration.
+     */
+    public CompletableFuture<Boolean> connectionAsync(int handleFrom, int handleTo);
+
     /**
      * Rozłączenie połączenia. Połączenie może rozłączyć dowolny z telefonów z
      * połączonej pary. Rozłączenie połączenia kończy pomiar czasu - z chwilą
@@ -61,6 +158,12 @@ public interface AccountingSystemInterface {
      */
     public void disconnection(String number);
 
+    /**
+     * Odpowiednik disconnection(String) dla uchwytu zwróconego przez
+     * phoneRegistration.
+     */
+    public void disconnection(int handle);
+
     /**
      * Metoda zwraca (o ile istnieje) sumaryczny czas zakończonych połączeń z
      * telefonu numberFrom do telefonu o numerze numberTo.
@@ -73,6 +176,12 @@ public interface AccountingSystemInterface {
      */
     public Optional<Long> getBilling(String numberFrom, String numberTo);
 
+    /**
+     * Odpowiednik getBilling(String, String) dla uchwytów zwróconych przez
+     * phoneRegistration.
+     */
+    public Optional<Long> getBilling(int handleFrom, int handleTo);
+
     /**
      * Metoda zwraca informację o stanie połączenia do/z danego numeru telefonu.
      * Jeśli numer nie jest znany systemowi zwracany jest pusty obiekt Optional.
@@ -86,4 +195,10 @@ public interface AccountingSystemInterface {
      *         Optional.
      */
     public Optional<Boolean> isConnected(String number);
+
+    /**
+     * Odpowiednik isConnected(String) dla uchwytu zwróconego przez
+     * phoneRegistration.
+     */
+    public Optional<Boolean> isConnected(int handle);
 }
\ No newline at end of file
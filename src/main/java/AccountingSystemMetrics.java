@@ -0,0 +1,205 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Liczniki i histogramy czasów operacji jednego AccountingSystem. Zapis nie
+ * używa blokad: liczniki to LongAdder, czasy trafiają do LatencyHistogram.
+ */
+public class AccountingSystemMetrics implements AccountingSystemMetricsMXBean {
+
+    /**
+     * Mierzone operacje. Poza metodami AccountingSystemInterface mierzone są
+     * oczekiwanie zadania newConnection w kolejce executora (CALLBACK_QUEUE),
+     * czas wykonania newConnection (RINGING) oraz pojedyncze wywołania
+     * connectionClosed dostarczane po zakończeniu połączenia
+     * (CONNECTION_CLOSED).
+     */
+    public enum Operation {
+        PHONE_REGISTRATION("phoneRegistration"),
+        SUBSCRIPTION_PURCHASE("subscriptionPurchase"),
+        GET_REMAINING_TIME("getRemainingTime"),
+        CONNECTION("connection"),
+        CALLBACK_QUEUE("callbackQueue"),
+        RINGING("ringing"),
+        DISCONNECTION("disconnection"),
+        CONNECTION_CLOSED("connectionClosed"),
+        GET_BILLING("getBilling"),
+        IS_CONNECTED("isConnected");
+
+        private final String displayName;
+
+        Operation(String displayName) {
+            this.displayName = displayName;
+        }
+    }
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final LatencyHistogram[] latencies;
+    private final LongAdder[] totalNanos;
+    private final LongAdder[] rejected;
+    private final LongAdder activeCalls;
+    private final LongAdder ringingCalls;
+    private final LongAdder ringTimeouts;
+    private final LongAdder shedCalls;
+    private final ExecutorService callbackExecutor;
+    private volatile ObjectName name;
+
+    public AccountingSystemMetrics(ExecutorService callbackExecutor) {
+        int operations = Operation.values().length;
+        this.latencies = new LatencyHistogram[operations];
+        this.totalNanos = new LongAdder[operations];
+        this.rejected = new LongAdder[operations];
+        for (int i = 0; i < operations; i++) {
+            this.latencies[i] = new LatencyHistogram();
+            this.totalNanos[i] = new LongAdder();
+            this.rejected[i] = new LongAdder();
+        }
+        this.activeCalls = new LongAdder();
+        this.ringingCalls = new LongAdder();
+        this.ringTimeouts = new LongAdder();
+        this.shedCalls = new LongAdder();
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Zapisuje czas operacji rozpoczętej w chwili startedAt (wynik start()).
+     */
+    public void record(Operation operation, long startedAt, boolean success) {
+        long elapsed = System.nanoTime() - startedAt;
+        int index = operation.ordinal();
+        this.latencies[index].record(elapsed);
+        this.totalNanos[index].add(elapsed);
+        if (!success)
+            this.rejected[index].increment();
+    }
+
+    public void ringingStarted() {
+        this.ringingCalls.increment();
+    }
+
+    public void ringingFinished(boolean connected) {
+        this.ringingCalls.decrement();
+        if (connected)
+            this.activeCalls.increment();
+    }
+
+    public void ringTimedOut() {
+        this.ringTimeouts.increment();
+    }
+
+    public void callShed() {
+        this.shedCalls.increment();
+    }
+
+    public void callFinished() {
+        this.activeCalls.decrement();
+    }
+
+    @Override
+    public Map<String, OperationStatistics> getOperations() {
+        Map<String, OperationStatistics> result = new LinkedHashMap<>();
+        for (Operation operation : Operation.values())
+            result.put(operation.displayName, this.getStatistics(operation));
+        return result;
+    }
+
+    public OperationStatistics getStatistics(Operation operation) {
+        int index = operation.ordinal();
+        long[] snapshot = this.latencies[index].snapshot();
+        long count = LatencyHistogram.count(snapshot);
+        double mean = count == 0L ? 0.0 : this.totalNanos[index].sum() / 1000.0 / count;
+        return new OperationStatistics(count, this.rejected[index].sum(), mean,
+                LatencyHistogram.percentile(snapshot, 50) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 99) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 99.9) / 1000.0,
+                LatencyHistogram.percentile(snapshot, 100) / 1000.0);
+    }
+
+    @Override
+    public long getActiveCalls() {
+        return this.activeCalls.sum();
+    }
+
+    @Override
+    public long getRingingCalls() {
+        return this.ringingCalls.sum();
+    }
+
+    @Override
+    public long getRingTimeouts() {
+        return this.ringTimeouts.sum();
+    }
+
+    @Override
+    public long getShedCalls() {
+        return this.shedCalls.sum();
+    }
+
+    @Override
+    public int getCallbackQueueDepth() {
+        if (this.callbackExecutor instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor) this.callbackExecutor).getQueue().size();
+        return -1;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < this.latencies.length; i++) {
+            this.latencies[i].snapshotAndReset();
+            this.totalNanos[i].reset();
+            this.rejected[i].reset();
+        }
+        this.ringTimeouts.reset();
+        this.shedCalls.reset();
+    }
+
+    /**
+     * @return nazwa, pod którą obiekt zarejestrowano w MBeanServer, lub null
+     */
+    public ObjectName getObjectName() {
+        return this.name;
+    }
+
+    /**
+     * Rejestruje obiekt w platformowym MBeanServer. Każdy AccountingSystem
+     * dostaje własną nazwę z kolejnym numerem instancji.
+     */
+    void register() {
+        try {
+            ObjectName objectName = new ObjectName("AccountingSystem:type=Metrics,instance="
+                    + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.name = objectName;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void unregister() {
+        ObjectName objectName = this.name;
+        if (objectName == null)
+            return;
+        this.name = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import java.util.Map;
+
+/**
+ * Liczniki i rozkłady czasów operacji AccountingSystem dostępne przez JMX
+ * (np. jconsole, jcmd, VisualVM) pod nazwą AccountingSystem:type=Metrics.
+ */
+public interface AccountingSystemMetricsMXBean {
+
+    /**
+     * @return statystyki kolejnych operacji, kluczem jest nazwa operacji
+     */
+    Map<String, OperationStatistics> getOperations();
+
+    long getActiveCalls();
+
+    long getRingingCalls();
+
+    /**
+     * @return liczba prób połączenia przerwanych po upływie limitu czasu
+     *         newConnection
+     */
+    long getRingTimeouts();
+
+    /**
+     * @return liczba prób połączenia odrzuconych z powodu przeciążenia
+     *         (limit maxRingingCalls lub odmowa executora)
+     */
+    long getShedCalls();
+
+    /**
+     * @return liczba zadań czekających w kolejce executora wywołań
+     *         PhoneInterface lub -1, gdy executor jej nie udostępnia
+     */
+    int getCallbackQueueDepth();
+
+    /**
+     * Zeruje liczniki i histogramy operacji.
+     */
+    void reset();
+}
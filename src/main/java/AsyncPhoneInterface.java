@@ -0,0 +1,48 @@
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Nieblokujący odpowiednik PhoneInterface, np. dla telefonów obsługiwanych
+ * przez bramkę sieciową. Decyzja o odebraniu połączenia przekazywana jest
+ * przez CompletionStage, więc system nie musi przeznaczać wątku na
+ * oczekiwanie na użytkownika.
+ */
+public interface AsyncPhoneInterface {
+    /**
+     * Informacja o próbie nawiązania połączenia z numeru number. Metoda nie
+     * może blokować - zwraca obiekt, który zostanie zakończony, gdy użytkownik
+     * telefonu zdecyduje co zrobić.
+     *
+     * @param number numer, z którego nawiązywane jest połączenie
+     * @return CompletionStage zakończony wartością true - połączenie zostało
+     *         zaakceptowane, false - odrzucono połączenie. Jeśli system
+     *         zrezygnuje z oczekiwania (np. po upływie limitu czasu), a obiekt
+     *         jest typu Future, zostanie on anulowany.
+     */
+    public CompletionStage<Boolean> newConnectionAsync(String number);
+
+    /**
+     * Metoda przekazuje informację o zakończeniu połączenia z numerem telefonu
+     * number.
+     *
+     * @param number numer telefonu, z którym prowadzona była właśnie zakończona rozmowa.
+     */
+    public void connectionClosed(String number);
+
+    /**
+     * @return widok telefonu jako PhoneInterface, którego newConnection czeka na
+     *         zakończenie newConnectionAsync
+     */
+    static PhoneInterface blocking(AsyncPhoneInterface phone) {
+        return new PhoneInterface() {
+            @Override
+            public boolean newConnection(String number) {
+                return phone.newConnectionAsync(number).toCompletableFuture().join();
+            }
+
+            @Override
+            public void connectionClosed(String number) {
+                phone.connectionClosed(number);
+            }
+        };
+    }
+}
@@ -0,0 +1,268 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Sumaryczne czasy połączeń dla par (numberFrom, numberTo) identyfikowanych
+ * zwartymi numerami kont. Klucze i sumy przechowywane są w tablicach typu
+ * long, więc odczyt i aktualizacja nie tworzą żadnych obiektów.
+ *
+ * Obrazy z wybranej chwili (snapshot) tworzone są metodą kopiowania przy
+ * zapisie: segment kopiowany jest przy pierwszej zmianie po utworzeniu obrazu
+ * albo przy pierwszym odczycie z obrazu, jeśli wcześniej się nie zmienił.
+ */
+public class BillingMatrix {
+
+    /**
+     * Odbiorca kolejnych par odwiedzanych przez forEach.
+     */
+    public interface Visitor {
+        void visit(int numberFrom, int numberTo, long total);
+    }
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final long EMPTY = -1L;
+
+    private final Segment[] segments;
+    private final List<Snapshot> snapshots;
+    private volatile long epoch;
+
+    public BillingMatrix() {
+        this.segments = new Segment[1 << SEGMENT_BITS];
+        for (int i = 0; i < this.segments.length; i++)
+            this.segments[i] = new Segment(i);
+        this.snapshots = new CopyOnWriteArrayList<>();
+    }
+
+    public long get(int numberFrom, int numberTo) {
+        long key = key(numberFrom, numberTo);
+        long hash = hash(key);
+        return this.segments[segment(hash)].get(key, hash);
+    }
+
+    public long add(int numberFrom, int numberTo, long duration) {
+        long key = key(numberFrom, numberTo);
+        long hash = hash(key);
+        return this.segments[segment(hash)].add(key, hash, duration);
+    }
+
+    public void forEach(Visitor visitor) {
+        for (Segment segment : this.segments)
+            segment.forEach(visitor);
+    }
+
+    /**
+     * Tworzy obraz bilingu z bieżącej chwili. Obraz należy zamknąć, gdy nie
+     * jest już potrzebny - do tego czasu zmiany kopiują zmieniane segmenty.
+     */
+    public synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(this.epoch + 1);
+        this.snapshots.add(snapshot);
+        this.epoch = snapshot.epoch;
+        return snapshot;
+    }
+
+    /**
+     * Biling z chwili wywołania BillingMatrix.snapshot.
+     */
+    public final class Snapshot implements AutoCloseable {
+        private final long epoch;
+        private final AtomicReferenceArray<Table> tables;
+
+        private Snapshot(long epoch) {
+            this.epoch = epoch;
+            this.tables = new AtomicReferenceArray<>(segments.length);
+        }
+
+        public long get(int numberFrom, int numberTo) {
+            long key = key(numberFrom, numberTo);
+            long hash = hash(key);
+            return find(this.table(segment(hash)), key, hash);
+        }
+
+        public void forEach(Visitor visitor) {
+            for (int i = 0; i < segments.length; i++)
+                forEachIn(this.table(i), visitor);
+        }
+
+        @Override
+        public void close() {
+            snapshots.remove(this);
+        }
+
+        private void preserve(int segment, Table table) {
+            this.tables.compareAndSet(segment, null, table);
+        }
+
+        private Table table(int index) {
+            Table table = this.tables.get(index);
+            if (table == null) {
+                Segment segment = segments[index];
+                long stamp = segment.lock.readLock();
+                try {
+                    if (this.tables.get(index) == null)
+                        this.preserve(index, segment.table.copy());
+                } finally {
+                    segment.lock.unlockRead(stamp);
+                }
+                table = this.tables.get(index);
+            }
+            return table;
+        }
+    }
+
+    private static long key(int numberFrom, int numberTo) {
+        return ((long) numberFrom << 32) | (numberTo & 0xFFFFFFFFL);
+    }
+
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static int segment(long hash) {
+        return (int) (hash >>> (64 - SEGMENT_BITS));
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final long[] totals;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.totals = new long[capacity];
+            Arrays.fill(this.keys, EMPTY);
+        }
+
+        private Table(long[] keys, long[] totals) {
+            this.keys = keys;
+            this.totals = totals;
+        }
+
+        Table copy() {
+            return new Table(this.keys.clone(), this.totals.clone());
+        }
+
+        int indexOf(long key, long hash) {
+            int mask = this.keys.length - 1;
+            int index = (int) hash & mask;
+            for (int probe = 0; probe < this.keys.length; probe++) {
+                long current = this.keys[index];
+                if (current == key || current == EMPTY)
+                    return index;
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    private static long find(Table table, long key, long hash) {
+        int index = table.indexOf(key, hash);
+        if (index < 0 || table.keys[index] != key)
+            return 0L;
+        return table.totals[index];
+    }
+
+    private static void forEachIn(Table table, Visitor visitor) {
+        long[] keys = table.keys;
+        long[] totals = table.totals;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                visitor.visit((int) (keys[i] >>> 32), (int) keys[i], totals[i]);
+        }
+    }
+
+    private final class Segment {
+        private final int index;
+        private final StampedLock lock = new StampedLock();
+        private Table table = new Table(INITIAL_CAPACITY);
+        private int size;
+        private long epoch;
+
+        Segment(int index) {
+            this.index = index;
+            this.epoch = BillingMatrix.this.epoch;
+        }
+
+        long get(long key, long hash) {
+            long stamp = this.lock.tryOptimisticRead();
+            long total = find(this.table, key, hash);
+            if (this.lock.validate(stamp))
+                return total;
+
+            stamp = this.lock.readLock();
+            try {
+                return find(this.table, key, hash);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        long add(long key, long hash, long duration) {
+            long stamp = this.lock.writeLock();
+            try {
+                this.preserve();
+                int index = this.table.indexOf(key, hash);
+                if (this.table.keys[index] == EMPTY) {
+                    if (2 * (this.size + 1) > this.table.keys.length) {
+                        this.resize();
+                        index = this.table.indexOf(key, hash);
+                    }
+                    this.table.keys[index] = key;
+                    this.size++;
+                }
+                return this.table.totals[index] += duration;
+            } finally {
+                this.lock.unlockWrite(stamp);
+            }
+        }
+
+        void forEach(Visitor visitor) {
+            long stamp = this.lock.readLock();
+            try {
+                forEachIn(this.table, visitor);
+            } finally {
+                this.lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Przy pierwszej zmianie po utworzeniu obrazu zapisuje w nim kopię
+         * segmentu sprzed zmiany. Wywoływana pod blokadą zapisu.
+         */
+        private void preserve() {
+            long current = BillingMatrix.this.epoch;
+            if (this.epoch == current)
+                return;
+            Table copy = null;
+            for (Snapshot snapshot : snapshots) {
+                if (snapshot.epoch > this.epoch) {
+                    if (copy == null)
+                        copy = this.table.copy();
+                    snapshot.preserve(this.index, copy);
+                }
+            }
+            this.epoch = current;
+        }
+
+        private void resize() {
+            Table old = this.table;
+            Table resized = new Table(old.keys.length * 2);
+            for (int i = 0; i < old.keys.length; i++) {
+                if (old.keys[i] != EMPTY) {
+                    int index = resized.indexOf(old.keys[i], hash(old.keys[i]));
+                    resized.keys[index] = old.keys[i];
+                    resized.totals[index] = old.totals[i];
+                }
+            }
+            this.table = resized;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binarny punkt kontrolny stanu AccountingSystem: numery i stany kont oraz
+ * macierz bilingu. Zapisywany i wczytywany sekwencyjnie, dużymi blokami.
+ * Układ pliku: nagłówek, konta (id, stan konta, numer), pary bilingu
+ * (numberFrom, numberTo, suma), suma kontrolna CRC32 całości.
+ */
+public class Checkpoint implements Journal.Listener {
+
+    private static final int MAGIC = 0x41434B50;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final int BILLING_RECORD_SIZE = 4 + 4 + 8;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int BUFFER_SIZE = 8 * 1024 * 1024;
+    private static final int INITIAL_ACCOUNTS = 1024;
+
+    private String[] numbers;
+    private long[] balances;
+    private int accounts;
+    private final BillingMatrix billing;
+
+    public Checkpoint() {
+        this.numbers = new String[INITIAL_ACCOUNTS];
+        this.balances = new long[INITIAL_ACCOUNTS];
+        this.billing = new BillingMatrix();
+    }
+
+    @Override
+    public void registration(int id, String number) {
+        if (id >= this.numbers.length) {
+            int capacity = Math.max(id + 1, 2 * this.numbers.length);
+            this.numbers = Arrays.copyOf(this.numbers, capacity);
+            this.balances = Arrays.copyOf(this.balances, capacity);
+        }
+        this.numbers[id] = number;
+        this.accounts = Math.max(this.accounts, id + 1);
+    }
+
+    @Override
+    public void purchase(int id, long time) {
+        this.balances[id] += time;
+    }
+
+    @Override
+    public void connection(int idFrom, int idTo) {
+    }
+
+    @Override
+    public void disconnection(int idFrom, int idTo, long duration) {
+        this.balances[idFrom] -= duration;
+        this.billing.add(idFrom, idTo, duration);
+    }
+
+    @Override
+    public void billing(int idFrom, int idTo, long total) {
+        this.billing.add(idFrom, idTo, total);
+    }
+
+    public void write(Path file) throws IOException {
+        long[] billingPairs = new long[1];
+        this.billing.forEach((from, to, total) -> billingPairs[0]++);
+
+        int registered = 0;
+        for (int id = 0; id < this.accounts; id++) {
+            if (this.numbers[id] != null)
+                registered++;
+        }
+
+        try (Output output = new Output(file)) {
+            output.ensure(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putInt(registered).putLong(billingPairs[0]);
+            for (int id = 0; id < this.accounts; id++) {
+                if (this.numbers[id] == null)
+                    continue;
+                byte[] number = this.numbers[id].getBytes(StandardCharsets.UTF_8);
+                output.ensure(4 + 8 + 2 + number.length).putInt(id).putLong(this.balances[id])
+                        .putShort((short) number.length).put(number);
+            }
+            this.billing.forEach((from, to, total) -> {
+                try {
+                    output.ensure(BILLING_RECORD_SIZE).putInt(from).putInt(to).putLong(total);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Wczytuje punkt kontrolny, przekazując do listener rejestrację i stan
+     * każdego konta, a następnie sumy bilingu.
+     */
+    public static void read(Path file, Journal.Listener listener) throws IOException {
+        try (Input input = new Input(file)) {
+            ByteBuffer header = input.ensure(HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Nieznany format punktu kontrolnego " + file);
+            int registered = header.getInt();
+            long billingPairs = header.getLong();
+
+            byte[] number = new byte[Short.MAX_VALUE];
+            for (int i = 0; i < registered; i++) {
+                ByteBuffer account = input.ensure(4 + 8 + 2);
+                int id = account.getInt();
+                long balance = account.getLong();
+                int length = account.getShort();
+                input.ensure(length).get(number, 0, length);
+                listener.registration(id, new String(number, 0, length, StandardCharsets.UTF_8));
+                if (balance != 0L)
+                    listener.purchase(id, balance);
+            }
+            for (long i = 0; i < billingPairs; i++) {
+                ByteBuffer pair = input.ensure(BILLING_RECORD_SIZE);
+                listener.billing(pair.getInt(), pair.getInt(), pair.getLong());
+            }
+            input.verify();
+        }
+    }
+
+    private static class Output implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 checksum;
+
+        Output(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.checksum = new CRC32();
+        }
+
+        ByteBuffer ensure(int size) throws IOException {
+            if (this.buffer.remaining() < size)
+                this.drain();
+            return this.buffer;
+        }
+
+        private void drain() throws IOException {
+            this.checksum.update(this.buffer.array(), 0, this.buffer.position());
+            this.buffer.flip();
+            while (this.buffer.hasRemaining())
+                this.channel.write(this.buffer);
+            this.buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.drain();
+                this.buffer.putInt((int) this.checksum.getValue()).flip();
+                while (this.buffer.hasRemaining())
+                    this.channel.write(this.buffer);
+                this.channel.force(true);
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    private static class Input implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 checksum;
+        private long unread;
+
+        Input(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.buffer.flip();
+            this.checksum = new CRC32();
+            this.unread = this.channel.size() - CHECKSUM_SIZE;
+        }
+
+        ByteBuffer ensure(int size) throws IOException {
+            if (this.buffer.remaining() >= size)
+                return this.buffer;
+            this.buffer.compact();
+            while (this.buffer.position() < size) {
+                int limit = (int) Math.min(this.buffer.capacity(), this.buffer.position() + this.unread);
+                if (limit == this.buffer.position())
+                    throw new IOException("Niekompletny punkt kontrolny");
+                int start = this.buffer.position();
+                this.buffer.limit(limit);
+                int read = this.channel.read(this.buffer);
+                if (read < 0)
+                    throw new IOException("Niekompletny punkt kontrolny");
+                this.checksum.update(this.buffer.array(), start, read);
+                this.unread -= read;
+            }
+            this.buffer.flip();
+            return this.buffer;
+        }
+
+        void verify() throws IOException {
+            ByteBuffer trailer = ByteBuffer.allocate(CHECKSUM_SIZE);
+            while (trailer.hasRemaining()) {
+                if (this.channel.read(trailer) < 0)
+                    throw new IOException("Niekompletny punkt kontrolny");
+            }
+            if (this.buffer.hasRemaining() || this.unread != 0L
+                    || trailer.getInt(0) != (int) this.checksum.getValue())
+                throw new IOException("Uszkodzony punkt kontrolny");
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pomiar przepustowości par connection/disconnection dla rosnącej liczby
+ * wątków. Każdy wątek obsługuje własną parę numerów, więc pary nie powinny ze
+ * sobą konkurować. Argument "sharded" mierzy ShardedAccountingSystem zamiast
+ * AccountingSystem.
+ */
+public class ConnectionThroughputBenchmark {
+
+	private static final long MEASUREMENT_TIME = 2000;
+	private static final long PURCHASE = 1000000000L;
+
+	private static class AcceptingPhone implements PhoneInterface {
+		@Override
+		public boolean newConnection(String number) {
+			return true;
+		}
+
+		@Override
+		public void connectionClosed(String number) {
+		}
+	}
+
+	private static double measure(Supplier<AccountingSystemInterface> factory, int threads) throws Exception {
+		AccountingSystemInterface asi = factory.get();
+		PhoneInterface phone = new AcceptingPhone();
+		AtomicLong calls = new AtomicLong();
+		CyclicBarrier start = new CyclicBarrier(threads + 1);
+		long[] stopAt = new long[1];
+
+		List<Thread> workers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			String from = "from-" + i;
+			String to = "to-" + i;
+			asi.phoneRegistration(from, phone);
+			asi.phoneRegistration(to, phone);
+			asi.subscriptionPurchase(from, PURCHASE);
+
+			workers.add(new Thread(() -> {
+				PMO_BarrierHelper.await(start);
+				long local = 0;
+				while (PMO_TimeHelper.getMsec() < stopAt[0]) {
+					if (asi.connection(from, to)) {
+						asi.disconnection(from);
+						local++;
+					}
+				}
+				calls.addAndGet(local);
+			}));
+		}
+
+		workers.forEach(Thread::start);
+		long startedAt = PMO_TimeHelper.getMsec();
+		stopAt[0] = startedAt + MEASUREMENT_TIME;
+		PMO_BarrierHelper.await(start);
+		PMO_ThreadsHelper.joinThreads(workers);
+		if (asi instanceof AutoCloseable)
+			((AutoCloseable) asi).close();
+
+		return calls.get() * 1000.0 / (PMO_TimeHelper.getMsec() - startedAt);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Supplier<AccountingSystemInterface> factory = args.length > 0 && args[0].equals("sharded")
+				? ShardedAccountingSystem::new
+				: AccountingSystem::new;
+		int cores = Runtime.getRuntime().availableProcessors();
+		measure(factory, 1);
+		for (int threads = 1; threads <= cores; threads *= 2) {
+			System.out.printf("threads: %3d  calls/s: %12.1f%n", threads, measure(factory, threads));
+		}
+	}
+}
@@ -0,0 +1,51 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tablica obiektów indeksowana zwartymi, nieujemnymi uchwytami typu int.
+ * Odczyt to dwa odwołania do tablicy - bez haszowania i bez blokad.
+ */
+public class HandleTable<T> {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private volatile AtomicReferenceArray<T>[] chunks;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public HandleTable() {
+        this.chunks = new AtomicReferenceArray[] { new AtomicReferenceArray<T>(CHUNK_SIZE) };
+    }
+
+    public T get(int handle) {
+        if (handle < 0)
+            return null;
+        AtomicReferenceArray<T>[] current = this.chunks;
+        int chunk = handle >>> CHUNK_BITS;
+        if (chunk >= current.length)
+            return null;
+        return current[chunk].get(handle & CHUNK_MASK);
+    }
+
+    public void set(int handle, T value) {
+        this.ensureCapacity(handle + 1);
+        this.chunks[handle >>> CHUNK_BITS].set(handle & CHUNK_MASK, value);
+    }
+
+    public void ensureCapacity(int capacity) {
+        int required = (capacity + CHUNK_MASK) >>> CHUNK_BITS;
+        if (required <= this.chunks.length)
+            return;
+        synchronized (this) {
+            AtomicReferenceArray<T>[] current = this.chunks;
+            if (required <= current.length)
+                return;
+            AtomicReferenceArray<T>[] grown = Arrays.copyOf(current,
+                    Math.max(required, 2 * current.length));
+            for (int i = current.length; i < grown.length; i++)
+                grown[i] = new AtomicReferenceArray<>(CHUNK_SIZE);
+            this.chunks = grown;
+        }
+    }
+}
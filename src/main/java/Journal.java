@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Dziennik zdarzeń AccountingSystem zapisywany w trybie dopisywania. Rekordy
+ * zgłoszone przez wiele wątków zapisywane są wspólnie i utrwalane jednym
+ * wywołaniem force (group commit). Zamknięte segmenty są w tle łączone w
+ * binarny punkt kontrolny (Checkpoint) opisujący aktualny stan systemu.
+ */
+public class Journal implements AutoCloseable {
+
+    /**
+     * Odbiorca zdarzeń odczytywanych z dziennika.
+     */
+    public interface Listener {
+        void registration(int id, String number);
+
+        void purchase(int id, long time);
+
+        void connection(int idFrom, int idTo);
+
+        void disconnection(int idFrom, int idTo, long duration);
+
+        void billing(int idFrom, int idTo, long total);
+    }
+
+    private static final byte REGISTRATION = 1;
+    private static final byte PURCHASE = 2;
+    private static final byte CONNECTION = 3;
+    private static final byte DISCONNECTION = 4;
+    private static final byte BILLING = 5;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String CHECKPOINT_PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".log";
+    private static final String CHECKPOINT_SUFFIX = ".bin";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int HEADER_SIZE = 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int COMPACTION_THRESHOLD = 4;
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private final ReentrantLock lock;
+    private final Condition pendingRecords;
+    private final Condition durableRecords;
+    private final CRC32 checksum;
+
+    private ByteBuffer pending;
+    private ByteBuffer writing;
+    private int recordStart;
+    private long appendedSequence;
+    private long durableSequence;
+    private IOException failure;
+    private boolean closed;
+
+    private FileChannel channel;
+    private long segmentIndex;
+    private final List<Long> sealedSegments;
+
+    private final Thread flusher;
+    private final ExecutorService compactor;
+
+    private Journal(Path directory, long segmentSize, long segmentIndex) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lock = new ReentrantLock();
+        this.pendingRecords = this.lock.newCondition();
+        this.durableRecords = this.lock.newCondition();
+        this.checksum = new CRC32();
+        this.pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.sealedSegments = new ArrayList<>();
+        this.segmentIndex = segmentIndex;
+        this.channel = openSegment(directory, segmentIndex);
+
+        this.compactor = Executors.newSingleThreadExecutor(
+                PhoneCallbackExecutors.daemonThreadFactory("journal-compactor-"));
+        this.flusher = new Thread(this::flush, "journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Odtwarza zawartość dziennika z katalogu directory, przekazując kolejne
+     * zdarzenia do listener, a następnie otwiera dziennik do zapisu.
+     */
+    public static Journal open(Path directory, long segmentSize, Listener listener) {
+        try {
+            Files.createDirectories(directory);
+            deleteTemporaryFiles(directory);
+
+            long compactedIndex = 0L;
+            Map.Entry<Long, Path> checkpoint = findFiles(directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX).lastEntry();
+            if (checkpoint != null) {
+                Checkpoint.read(checkpoint.getValue(), listener);
+                compactedIndex = checkpoint.getKey();
+            }
+
+            List<Long> sealed = new ArrayList<>();
+            long lastIndex = compactedIndex;
+            for (Map.Entry<Long, Path> segment : findFiles(directory, SEGMENT_PREFIX, SUFFIX).entrySet()) {
+                if (segment.getKey() <= compactedIndex) {
+                    Files.delete(segment.getValue()); // kompakcja przerwana przed usunięciem segmentów
+                    continue;
+                }
+                replay(segment.getValue(), listener);
+                sealed.add(segment.getKey());
+                lastIndex = segment.getKey();
+            }
+
+            Journal journal = new Journal(directory, segmentSize, lastIndex + 1);
+            journal.sealedSegments.addAll(sealed);
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long registration(int id, String number) {
+        byte[] bytes = number.getBytes(StandardCharsets.UTF_8);
+        this.lock.lock();
+        try {
+            ByteBuffer buffer = this.begin(REGISTRATION, 4 + 2 + bytes.length);
+            buffer.putInt(id).putShort((short) bytes.length).put(bytes);
+            return this.end(buffer);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long purchase(int id, long time) {
+        this.lock.lock();
+        try {
+            return this.end(this.begin(PURCHASE, 4 + 8).putInt(id).putLong(time));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long connection(int idFrom, int idTo) {
+        this.lock.lock();
+        try {
+            return this.end(this.begin(CONNECTION, 4 + 4).putInt(idFrom).putInt(idTo));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public long disconnection(int idFrom, int idTo, long duration) {
+        this.lock.lock();
+        try {
+            return this.end(this.begin(DISCONNECTION, 4 + 4 + 8).putInt(idFrom).putInt(idTo).putLong(duration));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Czeka, aż rekord o podanym numerze zostanie utrwalony na dysku. Po błędzie
+     * zapisu zgłasza go każdemu oczekującemu, również na rekordy o numerach
+     * mniejszych niż ostatni utrwalony.
+     */
+    public void awaitDurable(long sequence) {
+        AccountingSystemEvents.JournalWait event = new AccountingSystemEvents.JournalWait();
+        event.begin();
+        this.lock.lock();
+        try {
+            while (true) {
+                if (this.failure != null)
+                    throw new UncheckedIOException(this.failure);
+                if (this.durableSequence >= sequence)
+                    break;
+                this.durableRecords.awaitUninterruptibly();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        event.report(sequence);
+    }
+
+    public long getLastSequence() {
+        this.lock.lock();
+        try {
+            return this.appendedSequence;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.awaitDurable(this.getLastSequence());
+        } finally {
+            this.lock.lock();
+            try {
+                this.closed = true;
+                this.pendingRecords.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            try {
+                this.flusher.join();
+                this.compactor.shutdown();
+                this.compactor.awaitTermination(1, TimeUnit.MINUTES);
+                this.channel.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Rozpoczyna rekord w buforze pending. Po błędzie zapisu dziennik nie
+     * przyjmuje już żadnych rekordów - mogłyby znaleźć się za uszkodzonym
+     * rekordem, którego odtwarzanie nie przekroczy.
+     */
+    private ByteBuffer begin(byte type, int size) {
+        if (this.failure != null)
+            throw new UncheckedIOException(this.failure);
+        int required = HEADER_SIZE + 1 + size + CHECKSUM_SIZE;
+        if (this.pending.remaining() < required) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * this.pending.capacity(),
+                    this.pending.position() + required));
+            this.pending.flip();
+            grown.put(this.pending);
+            this.pending = grown;
+        }
+        this.recordStart = this.pending.position();
+        return this.pending.putInt(1 + size).put(type);
+    }
+
+    private long end(ByteBuffer buffer) {
+        int bodyStart = this.recordStart + HEADER_SIZE;
+        this.checksum.reset();
+        this.checksum.update(buffer.array(), bodyStart, buffer.position() - bodyStart);
+        buffer.putInt((int) this.checksum.getValue());
+        this.pendingRecords.signal();
+        return ++this.appendedSequence;
+    }
+
+    private void flush() {
+        while (true) {
+            long target;
+            this.lock.lock();
+            try {
+                while (this.pending.position() == 0 && !this.closed)
+                    this.pendingRecords.awaitUninterruptibly();
+                if (this.pending.position() == 0 || this.failure != null)
+                    return;
+                ByteBuffer swap = this.writing;
+                this.writing = this.pending;
+                this.pending = swap;
+                this.pending.clear();
+                target = this.appendedSequence;
+            } finally {
+                this.lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                this.writing.flip();
+                while (this.writing.hasRemaining())
+                    this.channel.write(this.writing);
+                this.channel.force(false);
+                if (this.channel.size() >= this.segmentSize)
+                    this.roll();
+            } catch (IOException e) {
+                error = e;
+            }
+            this.writing.clear();
+
+            this.lock.lock();
+            try {
+                if (error != null)
+                    this.failure = error;
+                else
+                    this.durableSequence = target;
+                this.durableRecords.signalAll();
+            } finally {
+                this.lock.unlock();
+            }
+            if (error != null)
+                return; // kolejne partie trafiłyby za niedokończony rekord
+        }
+    }
+
+    private void roll() throws IOException {
+        this.channel.close();
+        int sealed;
+        synchronized (this.sealedSegments) {
+            this.sealedSegments.add(this.segmentIndex);
+            sealed = this.sealedSegments.size();
+        }
+        this.segmentIndex++;
+        this.channel = openSegment(this.directory, this.segmentIndex);
+        if (sealed >= COMPACTION_THRESHOLD)
+            this.compactor.execute(this::compact);
+    }
+
+    private void compact() {
+        List<Long> segments;
+        synchronized (this.sealedSegments) {
+            if (this.sealedSegments.size() < COMPACTION_THRESHOLD)
+                return;
+            segments = new ArrayList<>(this.sealedSegments);
+        }
+        long lastIndex = segments.get(segments.size() - 1);
+
+        try {
+            Checkpoint state = new Checkpoint();
+            Map.Entry<Long, Path> previous = findFiles(this.directory, CHECKPOINT_PREFIX, CHECKPOINT_SUFFIX)
+                    .lastEntry();
+            if (previous != null)
+                Checkpoint.read(previous.getValue(), state);
+            for (Long index : segments)
+                replay(segmentPath(this.directory, index), state);
+
+            Path temporary = this.directory.resolve(CHECKPOINT_PREFIX + lastIndex + TEMPORARY_SUFFIX);
+            Path checkpoint = this.directory.resolve(CHECKPOINT_PREFIX + lastIndex + CHECKPOINT_SUFFIX);
+            state.write(temporary);
+            Files.move(temporary, checkpoint, StandardCopyOption.ATOMIC_MOVE);
+
+            if (previous != null)
+                Files.deleteIfExists(previous.getValue());
+            for (Long index : segments)
+                Files.deleteIfExists(segmentPath(this.directory, index));
+            synchronized (this.sealedSegments) {
+                this.sealedSegments.removeAll(segments);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void replay(Path file, Listener listener) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 checksum = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0 || buffer.remaining() < length + CHECKSUM_SIZE)
+                return; // niedokończony zapis na końcu segmentu
+            checksum.reset();
+            checksum.update(buffer.array(), start + HEADER_SIZE, length);
+            if (buffer.getInt(start + HEADER_SIZE + length) != (int) checksum.getValue())
+                return;
+
+            byte type = buffer.get();
+            switch (type) {
+            case REGISTRATION:
+                int id = buffer.getInt();
+                byte[] number = new byte[buffer.getShort()];
+                buffer.get(number);
+                listener.registration(id, new String(number, StandardCharsets.UTF_8));
+                break;
+            case PURCHASE:
+                listener.purchase(buffer.getInt(), buffer.getLong());
+                break;
+            case CONNECTION:
+                listener.connection(buffer.getInt(), buffer.getInt());
+                break;
+            case DISCONNECTION:
+                listener.disconnection(buffer.getInt(), buffer.getInt(), buffer.getLong());
+                break;
+            case BILLING:
+                listener.billing(buffer.getInt(), buffer.getInt(), buffer.getLong());
+                break;
+            default:
+                return;
+            }
+            buffer.position(start + HEADER_SIZE + length + CHECKSUM_SIZE);
+        }
+    }
+
+    private static FileChannel openSegment(Path directory, long index) throws IOException {
+        return FileChannel.open(segmentPath(directory, index), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    private static Path segmentPath(Path directory, long index) {
+        return directory.resolve(SEGMENT_PREFIX + index + SUFFIX);
+    }
+
+    private static TreeMap<Long, Path> findFiles(Path directory, String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (Stream<Path> list = Files.list(directory)) {
+            list.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())),
+                                path);
+                    } catch (NumberFormatException e) {
+                        // obcy plik w katalogu dziennika
+                    }
+                }
+            });
+        }
+        return files;
+    }
+
+    private static void deleteTemporaryFiles(Path directory) throws IOException {
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) list::iterator) {
+                if (path.getFileName().toString().endsWith(TEMPORARY_SUFFIX))
+                    Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram wartości nieujemnych (np. czasów w nanosekundach) z 16
+ * przedziałami na każdą potęgę dwójki, czyli z błędem względnym poniżej 7%.
+ * Zapis to jedna operacja atomowa bez blokad; wątki zapisują do różnych
+ * pasów tablicy, aby nie konkurować o te same linie pamięci podręcznej.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int MAX_STRIPES = 16;
+
+    private final AtomicLongArray counts;
+    private final int stripeMask;
+
+    public LatencyHistogram() {
+        int stripes = Integer.highestOneBit(Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors()));
+        this.stripeMask = stripes - 1;
+        this.counts = new AtomicLongArray(stripes * BUCKETS);
+    }
+
+    public void record(long value) {
+        int stripe = (int) Thread.currentThread().getId() & this.stripeMask;
+        this.counts.incrementAndGet(stripe * BUCKETS + index(Math.max(value, 0L)));
+    }
+
+    /**
+     * @return liczności przedziałów zsumowane ze wszystkich pasów
+     */
+    public long[] snapshot() {
+        return this.collect(false);
+    }
+
+    /**
+     * Jak snapshot, ale zeruje zliczone wartości.
+     */
+    public long[] snapshotAndReset() {
+        return this.collect(true);
+    }
+
+    private long[] collect(boolean reset) {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < this.counts.length(); i++)
+            result[i % BUCKETS] += reset ? this.counts.getAndSet(i, 0L) : this.counts.get(i);
+        return result;
+    }
+
+    public static long count(long[] snapshot) {
+        long total = 0L;
+        for (long count : snapshot)
+            total += count;
+        return total;
+    }
+
+    /**
+     * @return górna granica przedziału, w którym leży podany percentyl, lub 0
+     *         dla pustego histogramu
+     */
+    public static long percentile(long[] snapshot, double percentile) {
+        long total = count(snapshot);
+        if (total == 0L)
+            return 0L;
+        long rank = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0L;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return upperBound(snapshot.length - 1);
+    }
+
+    private static int index(long value) {
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent < SUB_BUCKET_BITS)
+            return (int) value;
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        long bound = (SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS);
+        return bound > 0L ? bound - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,61 @@
+import java.beans.ConstructorProperties;
+
+/**
+ * Migawka statystyk jednej operacji AccountingSystem. Czasy w mikrosekundach,
+ * percentyle z dokładnością przedziału LatencyHistogram.
+ */
+public class OperationStatistics {
+
+    private final long count;
+    private final long rejected;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+    private final double p999Micros;
+    private final double maxMicros;
+
+    @ConstructorProperties({ "count", "rejected", "meanMicros", "p50Micros", "p99Micros", "p999Micros",
+            "maxMicros" })
+    public OperationStatistics(long count, long rejected, double meanMicros, double p50Micros, double p99Micros,
+            double p999Micros, double maxMicros) {
+        this.count = count;
+        this.rejected = rejected;
+        this.meanMicros = meanMicros;
+        this.p50Micros = p50Micros;
+        this.p99Micros = p99Micros;
+        this.p999Micros = p999Micros;
+        this.maxMicros = maxMicros;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return liczba wywołań zakończonych odmową: nieznany numer, połączenie
+     *         nienawiązane, brak środków itp.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    public double getMeanMicros() {
+        return meanMicros;
+    }
+
+    public double getP50Micros() {
+        return p50Micros;
+    }
+
+    public double getP99Micros() {
+        return p99Micros;
+    }
+
+    public double getP999Micros() {
+        return p999Micros;
+    }
+
+    public double getMaxMicros() {
+        return maxMicros;
+    }
+}
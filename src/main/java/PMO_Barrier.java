@@ -50,30 +50,30 @@ public class PMO_Barrier implements PMO_LogSource {
 
 	public void await() {
 		if (enabled.get()) {
-			log("Przed await() dla bariery " + name + " getParties = " + barrier.getParties() + " getNumberWaiting = "
-					+ barrier.getNumberWaiting());
+			log(() -> "Przed await() dla bariery " + name + " getParties = " + barrier.getParties()
+					+ " getNumberWaiting = " + barrier.getNumberWaiting());
 			PMO_BarrierHelper.await(barrier);
-			log("Po await() dla bariery " + name);
+			log(() -> "Po await() dla bariery " + name);
 		}
 	}
 
 	public void trigger() {
 		if (withTrigger) {
 			log("Aktywowano trigger dla bariery " + name);
-			log("Trigger przed while dla bariery " + name);
-			log("Trigger dla bariery " + name + " getParties = " + barrier.getParties() + " getNumberWaiting = "
-					+ barrier.getNumberWaiting());
+			debug(() -> "Trigger przed while dla bariery " + name);
+			debug(() -> "Trigger dla bariery " + name + " getParties = " + barrier.getParties()
+					+ " getNumberWaiting = " + barrier.getNumberWaiting());
 			long time = PMO_TimeHelper.getMsec();
 			while (barrier.getParties() - barrier.getNumberWaiting() != 1) {
 				PMO_TimeHelper.sleep(50);
-				log("Trigger dla bariery " + name + " getParties = " + barrier.getParties() + " getNumberWaiting = "
-						+ barrier.getNumberWaiting() + " delay " + (PMO_TimeHelper.getMsec()-time));
+				debug(() -> "Trigger dla bariery " + name + " getParties = " + barrier.getParties()
+						+ " getNumberWaiting = " + barrier.getNumberWaiting() + " delay " + (PMO_TimeHelper.getMsec() - time));
 			}
-			log("Trigger dla bariery " + name + " getParties = " + barrier.getParties() + " getNumberWaiting = "
-					+ barrier.getNumberWaiting() + " delay " + (PMO_TimeHelper.getMsec()-time));
-			log("Trigger przed await dla bariery " + name);
+			log(() -> "Trigger dla bariery " + name + " getParties = " + barrier.getParties()
+					+ " getNumberWaiting = " + barrier.getNumberWaiting() + " delay " + (PMO_TimeHelper.getMsec() - time));
+			debug(() -> "Trigger przed await dla bariery " + name);
 			PMO_BarrierHelper.await(barrier);
-			log("Trigger po await dla bariery " + name);
+			log(() -> "Trigger po await dla bariery " + name);
 		}
 	}
 
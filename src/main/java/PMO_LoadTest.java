@@ -0,0 +1,212 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Długotrwały test obciążeniowy AccountingSystem. W odróżnieniu od
+ * PMO_PhoneCall i PMO_Disconnection nie tworzy wątku na połączenie: połączenia
+ * zgłaszane są przez connectionAsync z jednego wątku generującego zgłoszenia
+ * (rozkład Poissona), a rozłączenia planowane są w jednym
+ * ScheduledExecutorService.
+ *
+ * Parametry w postaci klucz=wartość, np.
+ * java PMO_LoadTest phones=100000 rate=2000 duration=3600
+ *
+ * Co reportSeconds wypisywana jest liczba zakończonych zestawień połączeń na
+ * sekundę, percentyle czasu zestawienia, liczba wątków i zajętość sterty.
+ */
+public class PMO_LoadTest {
+
+	private static final long PURCHASE = Long.MAX_VALUE / 4;
+
+	private static class Settings {
+		final int phones;
+		final double rate;
+		final long duration;
+		final double acceptProbability;
+		final long answerDelay;
+		final long callDuration;
+		final long reportInterval;
+
+		Settings(Map<String, String> args) {
+			phones = Integer.parseInt(args.getOrDefault("phones", "100000"));
+			rate = Double.parseDouble(args.getOrDefault("rate", "1000"));
+			duration = TimeUnit.SECONDS.toNanos(Long.parseLong(args.getOrDefault("duration", "3600")));
+			acceptProbability = Double.parseDouble(args.getOrDefault("acceptProbability", "0.8"));
+			answerDelay = Long.parseLong(args.getOrDefault("answerDelayMs", "200"));
+			callDuration = Long.parseLong(args.getOrDefault("callDurationMs", "30000"));
+			reportInterval = TimeUnit.SECONDS.toNanos(Long.parseLong(args.getOrDefault("reportSeconds", "10")));
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"phones=%d rate=%.1f/s duration=%ds acceptProbability=%.2f answerDelayMs=%d callDurationMs=%d",
+					phones, rate, TimeUnit.NANOSECONDS.toSeconds(duration), acceptProbability, answerDelay,
+					callDuration);
+		}
+	}
+
+	/**
+	 * Telefon, który odbiera po losowym (wykładniczym) czasie i akceptuje
+	 * połączenie z zadanym prawdopodobieństwem.
+	 */
+	private static class SimulatedPhone implements PhoneInterface {
+		private final Settings settings;
+
+		SimulatedPhone(Settings settings) {
+			this.settings = settings;
+		}
+
+		@Override
+		public boolean newConnection(String number) {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			PMO_TimeHelper.sleep(exponential(random, settings.answerDelay));
+			return random.nextDouble() < settings.acceptProbability;
+		}
+
+		@Override
+		public void connectionClosed(String number) {
+		}
+	}
+
+	private final Settings settings;
+	private final AccountingSystemInterface asi;
+	private final int[] handles;
+	private final ScheduledExecutorService disconnections;
+	private final LatencyHistogram setupLatency = new LatencyHistogram();
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong active = new AtomicLong();
+
+	private PMO_LoadTest(Settings settings) {
+		this.settings = settings;
+		this.asi = new AccountingSystem();
+		this.handles = new int[settings.phones];
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+				PhoneCallbackExecutors.daemonThreadFactory("load-disconnection-"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		this.disconnections = scheduler;
+	}
+
+	private void registerPhones() {
+		PhoneInterface phone = new SimulatedPhone(settings);
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = asi.phoneRegistration(PMO_PhoneNumberGenerator.getNumber(), phone);
+			asi.subscriptionPurchase(handles[i], PURCHASE);
+		}
+	}
+
+	private void call(ThreadLocalRandom random) {
+		int from = handles[random.nextInt(handles.length)];
+		int to = handles[random.nextInt(handles.length)];
+		if (from == to)
+			return;
+		long startedAt = System.nanoTime();
+		submitted.incrementAndGet();
+		asi.connectionAsync(from, to).whenComplete((connected, e) -> {
+			setupLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startedAt));
+			if (e != null) {
+				failed.incrementAndGet();
+			} else if (connected) {
+				accepted.incrementAndGet();
+				active.incrementAndGet();
+				long duration = exponential(ThreadLocalRandom.current(), settings.callDuration);
+				disconnections.schedule(() -> {
+					asi.disconnection(from);
+					active.decrementAndGet();
+				}, duration, TimeUnit.MILLISECONDS);
+			} else {
+				rejected.incrementAndGet();
+			}
+		});
+	}
+
+	private void run() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double meanInterval = TimeUnit.SECONDS.toNanos(1) / settings.rate;
+
+		System.out.printf("%8s %10s %10s %10s %9s %9s %9s %9s %9s %8s %8s %9s%n", "time[s]", "setups/s",
+				"accepted/s", "rejected/s", "active", "p50[ms]", "p90[ms]", "p99[ms]", "p99.9[ms]", "max[ms]",
+				"threads", "heap[MB]");
+
+		long startedAt = System.nanoTime();
+		long endAt = startedAt + settings.duration;
+		long nextArrival = startedAt;
+		long nextReport = startedAt + settings.reportInterval;
+		long lastReport = startedAt;
+		long lastAccepted = 0;
+		long lastRejected = 0;
+
+		while (true) {
+			long now = System.nanoTime();
+			while (nextArrival <= now) {
+				call(random);
+				nextArrival += (long) (-Math.log(1.0 - random.nextDouble()) * meanInterval);
+			}
+			if (now >= nextReport) {
+				long acceptedNow = accepted.get();
+				long rejectedNow = rejected.get();
+				double seconds = (now - lastReport) / 1e9;
+				long[] latency = setupLatency.snapshotAndReset();
+				System.out.printf("%8d %10.1f %10.1f %10.1f %9d %9.2f %9.2f %9.2f %9.2f %8.1f %8d %9d%n",
+						TimeUnit.NANOSECONDS.toSeconds(now - startedAt),
+						(acceptedNow - lastAccepted + rejectedNow - lastRejected) / seconds,
+						(acceptedNow - lastAccepted) / seconds, (rejectedNow - lastRejected) / seconds, active.get(),
+						millis(latency, 50), millis(latency, 90), millis(latency, 99), millis(latency, 99.9),
+						millis(latency, 100), threads.getThreadCount(),
+						memory.getHeapMemoryUsage().getUsed() / (1024 * 1024));
+				lastReport = now;
+				lastAccepted = acceptedNow;
+				lastRejected = rejectedNow;
+				nextReport += settings.reportInterval;
+			}
+			if (now >= endAt)
+				break;
+			LockSupport.parkNanos(Math.min(nextArrival, Math.min(nextReport, endAt)) - now);
+		}
+
+		System.out.printf("submitted: %d accepted: %d rejected: %d failed: %d peak threads: %d%n", submitted.get(),
+				accepted.get(), rejected.get(), failed.get(), threads.getPeakThreadCount());
+	}
+
+	private static double millis(long[] micros, double percentile) {
+		return LatencyHistogram.percentile(micros, percentile) / 1000.0;
+	}
+
+	private static long exponential(ThreadLocalRandom random, long mean) {
+		if (mean <= 0)
+			return 0;
+		return (long) (-Math.log(1.0 - random.nextDouble()) * mean);
+	}
+
+	public static void main(String[] args) {
+		Map<String, String> arguments = new HashMap<>();
+		for (String arg : args) {
+			int separator = arg.indexOf('=');
+			if (separator > 0)
+				arguments.put(arg.substring(0, separator), arg.substring(separator + 1));
+		}
+		Settings settings = new Settings(arguments);
+		System.out.println(settings);
+
+		PMO_LoadTest test = new PMO_LoadTest(settings);
+		long registrationStartedAt = PMO_TimeHelper.getMsec();
+		test.registerPhones();
+		System.out.printf("registered %d phones in %d ms%n", settings.phones,
+				PMO_TimeHelper.getMsec() - registrationStartedAt);
+		test.run();
+	}
+}
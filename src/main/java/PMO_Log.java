@@ -1,31 +1,199 @@
-import java.util.Collection;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Asynchroniczny dziennik testów. Wątki piszące jedynie wstawiają wpis do
+ * pierścieniowego bufora o stałym rozmiarze; formatowaniem i zapisem na
+ * System.err zajmuje się osobny wątek. Gdy bufor jest pełny, wpis jest
+ * porzucany (getDropped) - z wyjątkiem wpisów poziomu ERROR, które czekają na
+ * wolne miejsce. Pamięć zajmowana przez historię dla showLog jest
+ * ograniczona do pmo.log.history ostatnich wierszy.
+ *
+ * Właściwości systemowe: pmo.log.level (DEBUG, INFO, ERROR, OFF; domyślnie
+ * INFO), pmo.log.capacity (rozmiar bufora), pmo.log.history.
+ */
 public class PMO_Log {
-	private static Collection<String> log = new ConcurrentLinkedQueue<>();
+	public enum Level {
+		DEBUG, INFO, ERROR, OFF
+	}
+
+	private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("pmo.log.capacity", 16384)));
+	private static final int MASK = CAPACITY - 1;
+	private static final int HISTORY = Math.max(0, Integer.getInteger("pmo.log.history", 16384));
+	private static final int BATCH = 8192;
+	private static final long IDLE_PARK_NANOS = 10_000_000L;
+	private static final long FULL_PARK_NANOS = 100_000L;
+
+	private static final Entry[] ring = new Entry[CAPACITY];
+	private static final AtomicLong tail = new AtomicLong();
+	private static final LongAdder dropped = new LongAdder();
+	private static final ArrayDeque<String> history = new ArrayDeque<>();
+	private static volatile Level level = Level.valueOf(System.getProperty("pmo.log.level", "INFO"));
+	private static volatile long written;
+	private static volatile boolean idle;
+	private static final Thread writer;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++)
+			ring[i] = new Entry(i);
+		writer = new Thread(PMO_Log::drain, "PMO_Log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(PMO_Log::flush));
+	}
+
+	private static class Entry {
+		volatile long sequence;
+		long time;
+		String thread;
+		String text;
+		boolean formatted;
 
-	private static void add(String txt) {
-		System.err.println(txt);
-		log.add(txt);
+		Entry(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	public static boolean isEnabled(Level messageLevel) {
+		return messageLevel != Level.OFF && messageLevel.compareTo(level) >= 0;
 	}
 
 	public static void log(String txt) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("[");
-		sb.append(PMO_TimeHelper.timeFromStart());
-		sb.append(":");
-		sb.append(Thread.currentThread().getName());
-		sb.append("> ");
-		sb.append(txt);
-		sb.append("]");
-		add(sb.toString());
+		log(Level.INFO, txt);
+	}
+
+	public static void log(Level messageLevel, String txt) {
+		if (isEnabled(messageLevel))
+			add(txt, false, messageLevel == Level.ERROR);
+	}
+
+	/**
+	 * Treść komunikatu budowana jest dopiero, gdy poziom messageLevel jest
+	 * włączony.
+	 */
+	public static void log(Level messageLevel, Supplier<String> message) {
+		if (isEnabled(messageLevel))
+			add(message.get(), false, messageLevel == Level.ERROR);
 	}
 
 	public static void logFormatted(String txt) {
-		add(txt);
+		if (isEnabled(Level.INFO))
+			add(txt, true, false);
+	}
+
+	/**
+	 * @return liczba wpisów porzuconych z powodu zapełnienia bufora (nigdy
+	 *         poziomu ERROR)
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Czeka, aż wszystkie wpisy dodane przed wywołaniem zostaną zapisane.
+	 */
+	public static void flush() {
+		long target = tail.get();
+		while (written < target) {
+			LockSupport.unpark(writer);
+			LockSupport.parkNanos(100_000L);
+		}
 	}
 
 	public static void showLog() {
-		log.forEach(System.out::println);
+		flush();
+		List<String> lines;
+		synchronized (history) {
+			lines = new ArrayList<>(history);
+		}
+		lines.forEach(System.out::println);
+	}
+
+	/**
+	 * Gdy bufor jest pełny, wpis jest porzucany, chyba że wait - wtedy wątek
+	 * czeka, aż wątek piszący zwolni miejsce.
+	 */
+	private static void add(String txt, boolean formatted, boolean wait) {
+		Entry entry;
+		long position;
+		while (true) {
+			position = tail.get();
+			entry = ring[(int) position & MASK];
+			long sequence = entry.sequence;
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				if (!wait) {
+					dropped.increment();
+					return;
+				}
+				LockSupport.unpark(writer);
+				LockSupport.parkNanos(FULL_PARK_NANOS);
+			}
+		}
+		entry.time = PMO_TimeHelper.timeFromStart();
+		entry.thread = Thread.currentThread().getName();
+		entry.text = txt;
+		entry.formatted = formatted;
+		entry.sequence = position + 1;
+		if (idle)
+			LockSupport.unpark(writer);
+	}
+
+	private static void drain() {
+		StringBuilder line = new StringBuilder();
+		StringBuilder batch = new StringBuilder(2 * BATCH);
+		long head = 0L;
+		while (true) {
+			Entry entry = ring[(int) head & MASK];
+			if (entry.sequence == head + 1) {
+				line.setLength(0);
+				if (entry.formatted)
+					line.append(entry.text);
+				else
+					line.append('[').append(entry.time).append(':').append(entry.thread).append("> ")
+							.append(entry.text).append(']');
+				entry.thread = null;
+				entry.text = null;
+				entry.sequence = head + CAPACITY;
+				head++;
+				batch.append(line).append(System.lineSeparator());
+				remember(line.toString());
+				if (batch.length() < BATCH)
+					continue;
+			}
+			if (batch.length() > 0) {
+				System.err.print(batch);
+				System.err.flush();
+				batch.setLength(0);
+			}
+			written = head;
+			if (ring[(int) head & MASK].sequence != head + 1) {
+				idle = true;
+				if (ring[(int) head & MASK].sequence != head + 1)
+					LockSupport.parkNanos(IDLE_PARK_NANOS);
+				idle = false;
+			}
+		}
+	}
+
+	private static void remember(String line) {
+		if (HISTORY == 0)
+			return;
+		synchronized (history) {
+			if (history.size() == HISTORY)
+				history.pollFirst();
+			history.addLast(line);
+		}
 	}
 }
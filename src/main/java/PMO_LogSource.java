@@ -1,9 +1,18 @@
+import java.util.function.Supplier;
 
 public interface PMO_LogSource {
 	public default void log(String txt) {
 		logS(txt);
 	}
 
+	public default void log(Supplier<String> message) {
+		logS(message);
+	}
+
+	public default void debug(Supplier<String> message) {
+		debugS(message);
+	}
+
 	public default void error(String txt) {
 		errorS(txt);
 	}
@@ -12,8 +21,16 @@ public interface PMO_LogSource {
 		PMO_Log.log(txt);
 	}
 
+	public static void logS(Supplier<String> message) {
+		PMO_Log.log(PMO_Log.Level.INFO, message);
+	}
+
+	public static void debugS(Supplier<String> message) {
+		PMO_Log.log(PMO_Log.Level.DEBUG, message);
+	}
+
 	public static void errorS(String txt) {
-		logS(txt);
+		PMO_Log.log(PMO_Log.Level.ERROR, txt);
 	}
 
 }
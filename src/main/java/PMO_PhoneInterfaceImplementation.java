@@ -34,16 +34,16 @@ public class PMO_PhoneInterfaceImplementation implements PhoneInterface {
 	public void connectionClosed(String number) {
 		connectionClosedExecuted = true;
 		connectionClosedAt.set(PMO_TimeHelper.getMsec());
-		PMO_LogSource.logS( "Wykonana została metoda connectionClosed z argumentem " + number); 
+		PMO_LogSource.logS(() -> "Wykonana została metoda connectionClosed z argumentem " + number);
 	}
 
 	@Override
 	public boolean newConnection(String number) {
 		newConnectionExecuted = true;
 		connectionTo = number;
-		PMO_LogSource.logS("Wywołano newConnection z " + number + " jeszcze nie podjęto decyzji co zrobić");
+		PMO_LogSource.logS(() -> "Wywołano newConnection z " + number + " jeszcze nie podjęto decyzji co zrobić");
 		newConnectionBarrier.await();
-		PMO_LogSource.logS("Wywołano newConnection z " + number + " za chwilę połączenie zostanie "
+		PMO_LogSource.logS(() -> "Wywołano newConnection z " + number + " za chwilę połączenie zostanie "
 				+ (accept ? "zaakceptowane" : "odrzucone"));
 		return accept;
 	}
@@ -1,19 +1,40 @@
 import org.junit.jupiter.api.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.annotation.Retention;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class PMO_Test {
@@ -312,6 +333,16 @@ public class PMO_Test {
 		}
 	}
 
+	/**
+	 * connectionClosed dostarczane jest asynchronicznie - czekamy na nie
+	 * najwyżej 5 sekund.
+	 */
+	private boolean awaitConnectionClosed(PMO_PhoneInterfaceImplementation phone) {
+		for (int i = 0; i < 500 && !phone.connectionClosedExecuted(); i++)
+			PMO_TimeHelper.sleep(10);
+		return phone.connectionClosedExecuted();
+	}
+
 	private int bool2int(boolean bool) {
 		return bool ? 1 : 0;
 	}
@@ -717,8 +748,1046 @@ public class PMO_Test {
 
 	}
 
+	@Test
+	@Tariff(3.0)
+	// connectionAsync nie może czekać na decyzję odbierającego
+	public void asynchronousConnection() {
+		String source = PMO_PhoneNumberGenerator.getNumber();
+		String destination = PMO_PhoneNumberGenerator.getNumber();
+
+		PMO_Barrier newConnectionBarrier = new PMO_Barrier(1, true, true, true, "newConnectionBarrier async");
+		PMO_PhoneInterfaceImplementation destinationPhone = new PMO_PhoneInterfaceImplementation(newConnectionBarrier,
+				destination, true);
+
+		asi.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+		asi.phoneRegistration(destination, destinationPhone);
+		asi.subscriptionPurchase(source, 10000);
+
+		CompletableFuture<Boolean> result = PMO_TestHelper.tryToExecute(() -> asi.connectionAsync(source, destination),
+				"connectionAsync", 100);
+
+		assertNotNull(result, "Wynik metody connectionAsync nigdy nie może być null");
+		assertFalse(result.isDone(), "Połączenie zakończyło się zanim odbierający podjął decyzję");
+
+		newConnectionBarrier.trigger();
+
+		Boolean connected = PMO_TestHelper.tryToExecute(() -> result.get(), "connectionAsync", 1000);
+		assertTrue(connected, "Oczekiwano, że połączenie zostanie nawiązane");
+		assertTrue(destinationPhone.newConnectionExecuted(), "Oczekiwano wykonania metody newConnection");
+		assertTrue(PMO_OptionalHelper.testAndGet(asi.isConnected(source)), "Oczekiwano, że numer będzie zajęty");
+		assertTrue(PMO_OptionalHelper.testAndGet(asi.isConnected(destination)), "Oczekiwano, że numer będzie zajęty");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// executor utworzony przez system zamykany jest w close, podany w ustawieniach - nie
+	public void callbackExecutorShutdown() throws Exception {
+		Field executorField = AccountingSystem.class.getDeclaredField("executorService");
+		executorField.setAccessible(true);
+		AccountingSystem owning = new AccountingSystem();
+		ExecutorService created = (ExecutorService) executorField.get(owning);
+		owning.close();
+		assertTrue(created.isShutdown(), "Executor utworzony przez system powinien zostać zamknięty");
+
+		ExecutorService supplied = PhoneCallbackExecutors.boundedPlatformPool(1, 1);
+		try {
+			new AccountingSystem(supplied).close();
+			assertFalse(supplied.isShutdown(), "Executor podany w ustawieniach nie może zostać zamknięty");
+		} finally {
+			supplied.shutdown();
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// równoległe zakupy dla jednego numeru nie gubią wykupionego czasu
+	public void contendedPurchase() {
+		final int threads = 8;
+		final int purchases = 10000;
+		String number = PMO_PhoneNumberGenerator.getNumber();
+		asi.phoneRegistration(number, new PMO_PhoneInterfaceImplementation());
+		AtomicIntegerArray results = new AtomicIntegerArray(threads * purchases + 1);
+		PMO_Barrier barrier = new PMO_Barrier(threads, true, true, true, "Contended purchase");
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+			tasks.add(PMO_ThreadsHelper.preBarrierWrapper(() -> {
+				for (int j = 0; j < purchases; j++)
+					results.incrementAndGet((int) asi.subscriptionPurchase(number, 1L));
+			}, barrier));
+		List<Thread> workers = PMO_ThreadsHelper.createAndStartThreads(tasks, true);
+		barrier.trigger(true);
+		PMO_ThreadsHelper.joinThreads(workers);
+
+		assertEquals(threads * purchases, (long) PMO_OptionalHelper.testAndGet(asi.getRemainingTime(number)),
+				"Równoległe zakupy zgubiły wykupiony czas");
+		for (int i = 1; i <= threads * purchases; i++)
+			assertEquals(1, results.get(i), "Każdy stan konta powinien zostać zwrócony przez dokładnie jeden zakup");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// równoległe add i get w BillingMatrix, także w trakcie powiększania segmentów
+	public void contendedBillingMatrix() throws InterruptedException {
+		final int threads = 4;
+		final int pairs = 20000;
+		BillingMatrix billing = new BillingMatrix();
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong regressions = new AtomicLong();
+		Thread reader = new Thread(() -> {
+			long last = 0L;
+			while (running.get()) {
+				long total = billing.get(threads, 0);
+				if (total < last)
+					regressions.incrementAndGet();
+				last = total;
+			}
+		});
+		reader.start();
+		PMO_Barrier barrier = new PMO_Barrier(threads, true, true, true, "Contended billing");
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			int from = i;
+			tasks.add(PMO_ThreadsHelper.preBarrierWrapper(() -> {
+				for (int to = 0; to < pairs; to++) {
+					billing.add(from, to, to + 1L);
+					billing.add(threads, 0, 1L);
+					assertEquals(to + 1L, billing.get(from, to), "Odczyt nie widzi własnego zapisu");
+				}
+			}, barrier));
+		}
+		List<Thread> workers = PMO_ThreadsHelper.createAndStartThreads(tasks, true);
+		barrier.trigger(true);
+		PMO_ThreadsHelper.joinThreads(workers);
+		running.set(false);
+		reader.join();
+
+		assertEquals(0L, regressions.get(), "Suma bilingu nie może maleć");
+		assertEquals((long) threads * pairs, billing.get(threads, 0), "Równoległe add zgubiły czas połączeń");
+		for (int from = 0; from < threads; from++)
+			for (int to = 0; to < pairs; to++)
+				assertEquals(to + 1L, billing.get(from, to), "Błędna suma bilingu pary " + from + "->" + to);
+	}
+
+	@Test
+	@Tariff(3.0)
+	// operacje wykonywane z użyciem uchwytów zwróconych przez phoneRegistration
+	public void handleBasedOperations() {
+		String source = PMO_PhoneNumberGenerator.getNumber();
+		String destination = PMO_PhoneNumberGenerator.getNumber();
+		PMO_PhoneInterfaceImplementation sourcePhone = new PMO_PhoneInterfaceImplementation();
+		PMO_PhoneInterfaceImplementation destinationPhone = new PMO_PhoneInterfaceImplementation(
+				new PMO_Barrier(1, false, false, false, "local barrier"), destination, true);
+
+		int sourceHandle = asi.phoneRegistration(source, sourcePhone);
+		int destinationHandle = asi.phoneRegistration(destination, destinationPhone);
+
+		assertNotEquals(sourceHandle, destinationHandle, "Różne numery muszą otrzymać różne uchwyty");
+		assertEquals(sourceHandle, asi.phoneRegistration(source, sourcePhone),
+				"Ponowna rejestracja numeru powinna zwrócić ten sam uchwyt");
+
+		assertEquals(1000L, asi.subscriptionPurchase(sourceHandle, 1000L), "Błędny wynik subscriptionPurchase");
+		assertEquals(1000L, (long) PMO_OptionalHelper.testAndGet(asi.getRemainingTime(source)),
+				"Zakup wykonany przez uchwyt nie jest widoczny przez numer");
+
+		assertTrue(asi.connection(sourceHandle, destinationHandle), "Oczekiwano, że połączenie zostanie nawiązane");
+		assertTrue(PMO_OptionalHelper.testAndGet(asi.isConnected(destinationHandle)),
+				"Oczekiwano, że numer będzie zajęty");
+
+		PMO_TimeHelper.sleep(100);
+		asi.disconnection(destinationHandle);
+
+		assertFalse(PMO_OptionalHelper.testAndGet(asi.isConnected(sourceHandle)),
+				"Oczekiwano, że po disconnection numer nie będzie zajęty");
+		long billing = PMO_OptionalHelper.testAndGet(asi.getBilling(sourceHandle, destinationHandle));
+		assertEquals(billing, (long) PMO_OptionalHelper.testAndGet(asi.getBilling(source, destination)),
+				"Biling dla uchwytów i numerów nie jest zgodny");
+		assertTrue(billing >= 100L, "Biling nie uwzględnia zakończonego połączenia");
+		assertTrue(asi.isConnected(-1).isEmpty(), "Dla nieznanego uchwytu oczekiwano pustego obiektu Optional");
+	}
+
+	@Test
+	@Tariff(3.0)
+	// stan systemu odtwarzany jest z dziennika po ponownym uruchomieniu
+	public void journalRecovery() throws IOException {
+		Path directory = Files.createTempDirectory("PMO_journal");
+		AccountingSystemConfig config = new AccountingSystemConfig().journal(directory).journalSegmentSize(256);
+
+		String source = PMO_PhoneNumberGenerator.getNumber();
+		String destination = PMO_PhoneNumberGenerator.getNumber();
+		final long PURCHASE = 100;
+		final int PURCHASES = 50;
+
+		int sourceHandle;
+		long billing;
+		try (AccountingSystem system = new AccountingSystem(config)) {
+			sourceHandle = system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+			system.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			for (int i = 0; i < PURCHASES; i++)
+				system.subscriptionPurchase(source, PURCHASE);
+
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+			PMO_TimeHelper.sleep(100);
+			system.disconnection(source);
+			billing = PMO_OptionalHelper.testAndGet(system.getBilling(source, destination));
+		}
+
+		try (AccountingSystem system = new AccountingSystem(config)) {
+			assertEquals(PURCHASES * PURCHASE - billing,
+					(long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Stan konta odtworzony z dziennika nie zgadza się z zakupami i połączeniami");
+			assertEquals(billing, (long) PMO_OptionalHelper.testAndGet(system.getBilling(source, destination)),
+					"Biling odtworzony z dziennika nie zgadza się z zakończonym połączeniem");
+			assertEquals(sourceHandle, system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation()),
+					"Odtworzony numer powinien zachować swój uchwyt");
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				files.forEach(file -> file.toFile().delete());
+			}
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// po błędzie zapisu dziennik nie potwierdza i nie przyjmuje kolejnych rekordów
+	public void journalWriteFailure() throws Exception {
+		Path directory = Files.createTempDirectory("PMO_journal");
+		Journal.Listener ignored = new Journal.Listener() {
+			@Override
+			public void registration(int id, String number) {
+			}
+
+			@Override
+			public void purchase(int id, long time) {
+			}
+
+			@Override
+			public void connection(int idFrom, int idTo) {
+			}
+
+			@Override
+			public void disconnection(int idFrom, int idTo, long duration) {
+			}
+
+			@Override
+			public void billing(int idFrom, int idTo, long total) {
+			}
+		};
+		Journal journal = Journal.open(directory, 1 << 20, ignored);
+		try {
+			journal.awaitDurable(journal.purchase(0, 100L));
+
+			Field channel = Journal.class.getDeclaredField("channel");
+			channel.setAccessible(true);
+			((FileChannel) channel.get(journal)).close();
+
+			long lost = journal.purchase(0, 100L);
+			assertThrows(UncheckedIOException.class, () -> journal.awaitDurable(lost),
+					"Rekord, którego zapis się nie powiódł, nie może zostać potwierdzony");
+			assertThrows(UncheckedIOException.class, () -> journal.awaitDurable(1L),
+					"Po błędzie zapisu każde oczekiwanie powinno zgłaszać błąd");
+			assertThrows(UncheckedIOException.class, () -> journal.purchase(0, 100L),
+					"Po błędzie zapisu dziennik nie może przyjmować rekordów");
+		} finally {
+			assertThrows(UncheckedIOException.class, journal::close, "Zamknięcie powinno zgłosić błąd zapisu");
+			try (Stream<Path> files = Files.list(directory)) {
+				files.forEach(file -> file.toFile().delete());
+			}
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// liczniki operacji dostępne przez JMX
+	public void metricsMBean() throws Exception {
+		assertNull(((AccountingSystem) asi).getMetrics().getObjectName(),
+				"Bez włączenia w konfiguracji metryki nie powinny być rejestrowane w MBeanServer");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name;
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().jmx(true))) {
+			String source = PMO_PhoneNumberGenerator.getNumber();
+			String destination = PMO_PhoneNumberGenerator.getNumber();
+			system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+			system.phoneRegistration(destination,
+					new PMO_PhoneInterfaceImplementation(new PMO_Barrier(1, false, false, false, "local barrier"),
+							destination, true));
+			system.subscriptionPurchase(source, 10000);
+			system.getRemainingTime(PMO_PhoneNumberGenerator.getNumber());
+
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+			AccountingSystemMetrics metrics = system.getMetrics();
+			name = metrics.getObjectName();
+			assertNotNull(name, "Metryki nie zostały zarejestrowane w MBeanServer");
+			assertEquals(1L, server.getAttribute(name, "ActiveCalls"), "Błędna liczba trwających połączeń");
+
+			system.disconnection(source);
+			assertEquals(0L, server.getAttribute(name, "ActiveCalls"), "Błędna liczba trwających połączeń");
+			assertEquals(0L, server.getAttribute(name, "RingingCalls"), "Błędna liczba dzwoniących połączeń");
+			assertNotNull(server.getAttribute(name, "Operations"), "Statystyki operacji niedostępne przez JMX");
+
+			Map<String, OperationStatistics> operations = metrics.getOperations();
+			assertEquals(2L, operations.get("phoneRegistration").getCount(), "Błędna liczba rejestracji");
+			assertEquals(1L, operations.get("connection").getCount(), "Błędna liczba połączeń");
+			assertEquals(0L, operations.get("connection").getRejected(), "Błędna liczba odrzuconych połączeń");
+			assertEquals(1L, operations.get("getRemainingTime").getRejected(),
+					"Zapytanie o nieznany numer powinno zostać policzone jako odmowa");
+			assertEquals(1L, operations.get("disconnection").getCount(), "Błędna liczba rozłączeń");
+			assertTrue(operations.get("ringing").getMaxMicros() > 0.0, "Nie zmierzono czasu newConnection");
+		}
+		assertFalse(server.isRegistered(name), "Metryki powinny zostać wyrejestrowane w close");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// zdarzenia JFR cyklu życia połączenia
+	public void flightRecorderEvents() throws IOException {
+		String source = PMO_PhoneNumberGenerator.getNumber();
+		String destination = PMO_PhoneNumberGenerator.getNumber();
+		Path file = Files.createTempFile("PMO_events", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("AccountingSystem.Ringing");
+			recording.enable("AccountingSystem.Connection");
+			recording.enable("AccountingSystem.Disconnection");
+			recording.start();
+
+			int sourceHandle = asi.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+			int destinationHandle = asi.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			asi.subscriptionPurchase(source, 10000);
+			assertTrue(asi.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+			asi.disconnection(destination);
+
+			recording.stop();
+			recording.dump(file);
+
+			Map<String, RecordedEvent> events = new HashMap<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file))
+				events.put(event.getEventType().getName(), event);
+
+			RecordedEvent ringing = events.get("AccountingSystem.Ringing");
+			assertNotNull(ringing, "Brak zdarzenia Ringing");
+			assertEquals(sourceHandle, ringing.getInt("callerId"), "Błędny numer dzwoniącego w zdarzeniu");
+			assertEquals(destinationHandle, ringing.getInt("calleeId"), "Błędny numer odbierającego w zdarzeniu");
+			assertTrue(ringing.getBoolean("accepted"), "Zdarzenie Ringing powinno wskazywać akceptację");
+			assertTrue(events.get("AccountingSystem.Connection").getBoolean("connected"),
+					"Zdarzenie Connection powinno wskazywać nawiązanie połączenia");
+			assertFalse(events.get("AccountingSystem.Disconnection").getBoolean("automatic"),
+					"Rozłączenie wykonane przez disconnection nie jest automatyczne");
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// automatyczne rozłączenie tuż po nawiązaniu połączenia zwalnia oba numery
+	public void immediateAutodisconnection() {
+		final int calls = 200;
+		// każdy odczyt zegara przesuwa go o 100 ms, więc środki kończą się
+		// jeszcze w trakcie nawiązywania połączenia
+		AtomicLong clock = new AtomicLong();
+		try (AccountingSystem system = new AccountingSystem(
+				new AccountingSystemConfig().timeSource(() -> clock.addAndGet(100L)))) {
+			for (int i = 0; i < calls; i++) {
+				String source = PMO_PhoneNumberGenerator.getNumber();
+				String destination = PMO_PhoneNumberGenerator.getNumber();
+				PMO_PhoneInterfaceImplementation destinationPhone = new PMO_PhoneInterfaceImplementation(
+						new PMO_Barrier(1, false, false, false, "local barrier"), destination, true);
+				system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+				system.phoneRegistration(destination, destinationPhone);
+				system.subscriptionPurchase(source, 50L);
+				assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+				assertTrue(awaitConnectionClosed(destinationPhone), "Oczekiwano automatycznego rozłączenia");
+				assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(source)),
+						"Po automatycznym rozłączeniu numer dzwoniący nie może być zajęty");
+				assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destination)),
+						"Po automatycznym rozłączeniu numer odbierający nie może być zajęty");
+			}
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// wielogodzinne połączenia rozłączane automatycznie w czasie wirtualnym
+	public void virtualTimeAutodisconnection() {
+		final int pairs = 5;
+		final long hour = 3600 * 1000L;
+		VirtualTimeSource time = new VirtualTimeSource();
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().timeSource(time))) {
+			List<PMO_PhoneInterfaceImplementation> sourcePhones = new ArrayList<>();
+			List<String> sources = new ArrayList<>();
+			List<String> destinations = new ArrayList<>();
+			for (int i = 0; i < pairs; i++) {
+				sources.add(PMO_PhoneNumberGenerator.getNumber());
+				destinations.add(PMO_PhoneNumberGenerator.getNumber());
+				sourcePhones.add(new PMO_PhoneInterfaceImplementation());
+				system.phoneRegistration(sources.get(i), sourcePhones.get(i));
+				system.phoneRegistration(destinations.get(i), new PMO_PhoneInterfaceImplementation(
+						new PMO_Barrier(1, false, false, false, "local barrier"), destinations.get(i), true));
+				system.subscriptionPurchase(sources.get(i), (i + 1) * hour);
+				assertTrue(system.connection(sources.get(i), destinations.get(i)),
+						"Oczekiwano, że połączenie zostanie nawiązane");
+			}
+
+			time.advance(hour / 2);
+			for (int i = 0; i < pairs; i++)
+				assertTrue(PMO_OptionalHelper.testAndGet(system.isConnected(sources.get(i))),
+						"Połączenie nie powinno zostać zakończone przed wyczerpaniem środków");
+
+			for (int hours = 1; hours <= pairs; hours++) {
+				time.advance(hours == 1 ? hour / 2 : hour);
+				for (int i = 0; i < pairs; i++) {
+					boolean finished = i < hours;
+					assertEquals(!finished, PMO_OptionalHelper.testAndGet(system.isConnected(sources.get(i))),
+							"Błędny stan połączenia po " + hours + " godzinach");
+					assertEquals(finished, finished ? awaitConnectionClosed(sourcePhones.get(i))
+							: sourcePhones.get(i).connectionClosedExecuted(),
+							"Błędne wywołanie connectionClosed po " + hours + " godzinach");
+				}
+			}
+
+			for (int i = 0; i < pairs; i++) {
+				assertEquals((i + 1) * hour,
+						(long) PMO_OptionalHelper.testAndGet(system.getBilling(sources.get(i), destinations.get(i))),
+						"Biling powinien obejmować cały wykupiony czas");
+				assertEquals(0L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(sources.get(i))),
+						"Po automatycznym rozłączeniu na koncie nie powinno zostać czasu");
+			}
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// silnik z numerami podzielonymi między shardy
+	public void shardedAccountingSystem() {
+		final int pairs = 4;
+		ShardedAccountingSystem system = new ShardedAccountingSystem(new AccountingSystemConfig().shards(3));
+		List<String> sources = new ArrayList<>();
+		try {
+			List<String> destinations = new ArrayList<>();
+			List<PMO_PhoneInterfaceImplementation> sourcePhones = new ArrayList<>();
+			for (int i = 0; i < pairs; i++) {
+				sources.add(PMO_PhoneNumberGenerator.getNumber());
+				destinations.add(PMO_PhoneNumberGenerator.getNumber());
+				sourcePhones.add(new PMO_PhoneInterfaceImplementation());
+				int handle = system.phoneRegistration(sources.get(i), sourcePhones.get(i));
+				assertEquals(handle, system.phoneRegistration(sources.get(i), sourcePhones.get(i)),
+						"Ponowna rejestracja numeru powinna zwrócić ten sam uchwyt");
+				system.phoneRegistration(destinations.get(i), new PMO_PhoneInterfaceImplementation(
+						new PMO_Barrier(1, false, false, false, "local barrier"), destinations.get(i), true));
+				assertEquals(10000L, system.subscriptionPurchase(handle, 10000L), "Błędny wynik subscriptionPurchase");
+				assertTrue(system.connection(sources.get(i), destinations.get(i)),
+						"Oczekiwano, że połączenie zostanie nawiązane");
+				assertTrue(PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(i))),
+						"Oczekiwano, że numer będzie zajęty");
+			}
+			assertFalse(system.connection(sources.get(0), destinations.get(1)),
+					"Połączenie z zajętym numerem nie może zostać nawiązane");
+
+			String rejecting = PMO_PhoneNumberGenerator.getNumber();
+			system.phoneRegistration(rejecting, new PMO_PhoneInterfaceImplementation());
+			system.subscriptionPurchase(rejecting, 10000L);
+			assertFalse(system.connection(rejecting, sources.get(0)) || system.connection(destinations.get(0), rejecting),
+					"Połączenie nie powinno zostać nawiązane");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(rejecting)),
+					"Po odrzuceniu połączenia numer nie może być zajęty");
+
+			PMO_TimeHelper.sleep(100);
+			for (int i = 0; i < pairs; i++) {
+				system.disconnection(i % 2 == 0 ? sources.get(i) : destinations.get(i));
+				assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(sources.get(i))),
+						"Oczekiwano, że po disconnection numer nie będzie zajęty");
+				assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(i))),
+						"Oczekiwano, że po disconnection numer nie będzie zajęty");
+				assertTrue(awaitConnectionClosed(sourcePhones.get(i)), "Oczekiwano wykonania connectionClosed");
+				long billing = PMO_OptionalHelper.testAndGet(system.getBilling(sources.get(i), destinations.get(i)));
+				assertTrue(billing >= 100L, "Biling nie uwzględnia zakończonego połączenia");
+				assertEquals(10000L - billing,
+						(long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(sources.get(i))),
+						"Stan konta nie uwzględnia zakończonego połączenia");
+			}
+
+			system.subscriptionPurchase(sources.get(1), -(long) PMO_OptionalHelper
+					.testAndGet(system.getRemainingTime(sources.get(1))) + 200L);
+			assertTrue(system.connection(sources.get(1), destinations.get(2)),
+					"Oczekiwano, że połączenie zostanie nawiązane");
+			PMO_TimeHelper.sleep(600);
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(2))),
+					"Połączenie powinno zostać automatycznie zakończone");
+			assertEquals(0L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(sources.get(1))),
+					"Po automatycznym rozłączeniu na koncie nie powinno zostać czasu");
+			assertEquals(200L,
+					(long) PMO_OptionalHelper.testAndGet(system.getBilling(sources.get(1), destinations.get(2))),
+					"Biling powinien obejmować cały wykupiony czas");
+		} finally {
+			system.close();
+		}
+		assertThrows(IllegalStateException.class, () -> system.subscriptionPurchase(sources.get(0), 1L),
+				"Po close polecenia shardów powinny kończyć się wyjątkiem");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// automatyczne rozłączenie w ShardedAccountingSystem sterowane czasem wirtualnym i przesuwane zakupem
+	public void shardedVirtualTime() {
+		VirtualTimeSource time = new VirtualTimeSource();
+		try (ShardedAccountingSystem system = new ShardedAccountingSystem(
+				new AccountingSystemConfig().shards(3).timeSource(time))) {
+			String source = PMO_PhoneNumberGenerator.getNumber();
+			String destination = PMO_PhoneNumberGenerator.getNumber();
+			PMO_PhoneInterfaceImplementation sourcePhone = new PMO_PhoneInterfaceImplementation();
+			system.phoneRegistration(source, sourcePhone);
+			system.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			system.subscriptionPurchase(source, 10000L);
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+
+			time.advance(3000L);
+			assertEquals(7000L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Saldo w trakcie połączenia powinno uwzględniać czas rozmowy");
+			assertEquals(12000L, system.subscriptionPurchase(source, 5000L),
+					"Wynik zakupu powinien uwzględniać czas trwającego połączenia");
+			time.advance(11999L);
+			assertTrue(PMO_OptionalHelper.testAndGet(system.isConnected(destination)),
+					"Połączenie nie może zostać zakończone przed wyczerpaniem środków");
+			time.advance(1L);
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(source)),
+					"Połączenie powinno zostać automatycznie zakończone");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destination)),
+					"Połączenie powinno zostać automatycznie zakończone");
+			assertEquals(15000L, (long) PMO_OptionalHelper.testAndGet(system.getBilling(source, destination)),
+					"Biling powinien obejmować cały wykupiony czas");
+			assertEquals(0L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Po automatycznym rozłączeniu na koncie nie powinno zostać czasu");
+			assertTrue(awaitConnectionClosed(sourcePhone), "Oczekiwano wykonania connectionClosed");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// przerwanie newConnection telefonu, który nie podejmuje decyzji
+	public void ringTimeout() {
+		VirtualTimeSource time = new VirtualTimeSource();
+		PMO_Barrier hung = new PMO_Barrier(1, true, false, true, "hung barrier");
+		try (AccountingSystem system = new AccountingSystem(
+				new AccountingSystemConfig().timeSource(time).ringTimeout(5000L))) {
+			String caller = PMO_PhoneNumberGenerator.getNumber();
+			String callee = PMO_PhoneNumberGenerator.getNumber();
+			String other = PMO_PhoneNumberGenerator.getNumber();
+			system.phoneRegistration(caller, new PMO_PhoneInterfaceImplementation());
+			system.phoneRegistration(callee, new PMO_PhoneInterfaceImplementation(hung, callee, true));
+			system.phoneRegistration(other, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), other, true));
+			system.subscriptionPurchase(caller, 10000L);
+
+			CompletableFuture<Boolean> ringing = system.connectionAsync(caller, callee);
+			for (int i = 0; i < 500 && hung.barrier.getNumberWaiting() == 0; i++)
+				PMO_TimeHelper.sleep(10);
+			assertEquals(1, hung.barrier.getNumberWaiting(), "Oczekiwano wywołania newConnection");
+
+			time.advance(4999L);
+			assertFalse(ringing.isDone(), "Próba połączenia nie powinna zakończyć się przed upływem limitu");
+			time.advance(1L);
+			assertTrue(ringing.isDone(), "Próba połączenia powinna zakończyć się po upływie limitu");
+			assertFalse(ringing.join(), "Połączenie nie powinno zostać nawiązane");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(caller)),
+					"Po upływie limitu numer dzwoniącego powinien zostać zwolniony");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(callee)),
+					"Po upływie limitu numer odbierającego powinien zostać zwolniony");
+			assertEquals(1L, system.getMetrics().getRingTimeouts(), "Błędna liczba przekroczeń limitu");
+
+			for (int i = 0; i < 500 && !hung.barrier.isBroken(); i++)
+				PMO_TimeHelper.sleep(10);
+			assertTrue(hung.barrier.isBroken(), "Wątek wykonujący newConnection powinien zostać przerwany");
+
+			assertTrue(system.connection(caller, other), "Oczekiwano, że połączenie zostanie nawiązane");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// odrzucanie prób połączenia ponad limit jednocześnie dzwoniących
+	public void ringingAdmissionLimit() {
+		PMO_Barrier ringing = new PMO_Barrier(2, true, false, true, "ringing barrier");
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().maxRingingCalls(2))) {
+			List<String> sources = new ArrayList<>();
+			List<String> destinations = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				sources.add(PMO_PhoneNumberGenerator.getNumber());
+				destinations.add(PMO_PhoneNumberGenerator.getNumber());
+				system.phoneRegistration(sources.get(i), new PMO_PhoneInterfaceImplementation());
+				system.phoneRegistration(destinations.get(i),
+						new PMO_PhoneInterfaceImplementation(i < 2 ? ringing
+								: new PMO_Barrier(1, false, false, false, "local barrier"), destinations.get(i), true));
+				system.subscriptionPurchase(sources.get(i), 10000L);
+			}
+
+			List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+			for (int i = 0; i < 2; i++)
+				calls.add(system.connectionAsync(sources.get(i), destinations.get(i)));
+			CompletableFuture<Boolean> shed = system.connectionAsync(sources.get(2), destinations.get(2));
+			assertTrue(shed.isDone(), "Próba połączenia ponad limit powinna zostać odrzucona natychmiast");
+			assertFalse(shed.join(), "Połączenie ponad limit nie powinno zostać nawiązane");
+			assertEquals(1L, system.getMetrics().getShedCalls(), "Błędna liczba odrzuconych prób połączenia");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(2))),
+					"Po odrzuceniu numer nie może być zajęty");
+
+			ringing.trigger();
+			for (CompletableFuture<Boolean> call : calls)
+				assertTrue(call.join(), "Oczekiwano, że połączenie zostanie nawiązane");
+			assertTrue(system.connection(sources.get(2), destinations.get(2)),
+					"Po zwolnieniu limitu połączenie powinno zostać nawiązane");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// poziomy i leniwe komunikaty dziennika
+	public void asynchronousLog() {
+		List<String> evaluated = new ArrayList<>();
+		PMO_LogSource.debugS(() -> {
+			evaluated.add("debug");
+			return "komunikat DEBUG";
+		});
+		PMO_LogSource.logS(() -> {
+			evaluated.add("info");
+			return "komunikat INFO";
+		});
+		assertEquals(List.of("info"), evaluated, "Komunikat wyłączonego poziomu nie powinien być budowany");
+		assertTimeoutPreemptively(Duration.ofSeconds(5), PMO_Log::flush, "Zapis dziennika nie powinien blokować");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// wpisy poziomu ERROR nie są porzucane nawet przy pełnym buforze dziennika
+	public void errorsNeverDropped() {
+		long droppedBefore = PMO_Log.getDropped();
+		for (int i = 0; i < 50000; i++)
+			PMO_LogSource.errorS("E" + i);
+		PMO_Log.flush();
+		assertEquals(droppedBefore, PMO_Log.getDropped(), "Wpis poziomu ERROR nie może zostać porzucony");
+	}
+
+	@Test
+	@Tariff(1.0)
+	// wolne connectionClosed jednego telefonu nie blokuje innych rozłączeń
+	public void asynchronousConnectionClosed() {
+		PMO_Barrier slow = new PMO_Barrier(1, true, false, true, "slow connectionClosed");
+		List<String> closedBySlowPhone = Collections.synchronizedList(new ArrayList<>());
+		PhoneInterface slowPhone = new PhoneInterface() {
+			@Override
+			public boolean newConnection(String number) {
+				return true;
+			}
+
+			@Override
+			public void connectionClosed(String number) {
+				slow.await();
+				closedBySlowPhone.add(number);
+			}
+		};
+		try (AccountingSystem system = new AccountingSystem()) {
+			String slowNumber = PMO_PhoneNumberGenerator.getNumber();
+			List<String> others = new ArrayList<>();
+			List<PMO_PhoneInterfaceImplementation> otherPhones = new ArrayList<>();
+			system.phoneRegistration(slowNumber, slowPhone);
+			system.subscriptionPurchase(slowNumber, 100000L);
+			for (int i = 0; i < 3; i++) {
+				others.add(PMO_PhoneNumberGenerator.getNumber());
+				otherPhones.add(new PMO_PhoneInterfaceImplementation(
+						new PMO_Barrier(1, false, false, false, "local barrier"), others.get(i), true));
+				system.phoneRegistration(others.get(i), otherPhones.get(i));
+				system.subscriptionPurchase(others.get(i), 100000L);
+			}
+
+			assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+				for (int i = 0; i < 2; i++) {
+					assertTrue(system.connection(slowNumber, others.get(i)), "Oczekiwano nawiązania połączenia");
+					system.disconnection(slowNumber);
+				}
+				assertTrue(system.connection(others.get(2), others.get(0)), "Oczekiwano nawiązania połączenia");
+				system.disconnection(others.get(2));
+			}, "Wolne connectionClosed nie powinno blokować disconnection");
+			assertTrue(awaitConnectionClosed(otherPhones.get(2)), "Oczekiwano wykonania connectionClosed");
+			assertTrue(closedBySlowPhone.isEmpty(), "connectionClosed wolnego telefonu nie powinno się zakończyć");
+
+			slow.trigger();
+			slow.trigger();
+			for (int i = 0; i < 500 && closedBySlowPhone.size() < 2; i++)
+				PMO_TimeHelper.sleep(10);
+			assertEquals(List.of(others.get(0), others.get(1)), closedBySlowPhone,
+					"Powiadomienia telefonu powinny zostać dostarczone w kolejności rozłączeń");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// błąd (Error) w connectionClosed nie wstrzymuje kolejnych powiadomień telefonu
+	public void connectionClosedAfterError() {
+		List<String> closed = Collections.synchronizedList(new ArrayList<>());
+		PhoneInterface failingPhone = new PhoneInterface() {
+			@Override
+			public boolean newConnection(String number) {
+				return true;
+			}
+
+			@Override
+			public void connectionClosed(String number) {
+				if (closed.isEmpty() && closed.add(number))
+					throw new AssertionError("connectionClosed");
+				closed.add(number);
+			}
+		};
+		try (AccountingSystem system = new AccountingSystem()) {
+			String failingNumber = PMO_PhoneNumberGenerator.getNumber();
+			String other = PMO_PhoneNumberGenerator.getNumber();
+			system.phoneRegistration(failingNumber, failingPhone);
+			system.phoneRegistration(other, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), other, true));
+			system.subscriptionPurchase(failingNumber, 100000L);
+			for (int i = 0; i < 2; i++) {
+				assertTrue(system.connection(failingNumber, other), "Oczekiwano nawiązania połączenia");
+				system.disconnection(failingNumber);
+			}
+			for (int i = 0; i < 500 && closed.size() < 2; i++)
+				PMO_TimeHelper.sleep(10);
+			assertEquals(List.of(other, other), closed,
+					"Powiadomienie po błędzie poprzedniego powinno zostać dostarczone");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// telefony AsyncPhoneInterface nie zajmują wątków w trakcie dzwonienia
+	public void asyncPhoneInterface() {
+		final int calls = 50;
+		VirtualTimeSource time = new VirtualTimeSource();
+		Map<String, CompletableFuture<Boolean>> decisions = new HashMap<>();
+		AsyncPhoneInterface gateway = new AsyncPhoneInterface() {
+			@Override
+			public CompletableFuture<Boolean> newConnectionAsync(String number) {
+				CompletableFuture<Boolean> decision = new CompletableFuture<>();
+				decisions.put(number, decision);
+				return decision;
+			}
+
+			@Override
+			public void connectionClosed(String number) {
+			}
+		};
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().timeSource(time)
+				.ringTimeout(1000L).callbackExecutor(PhoneCallbackExecutors.boundedPlatformPool(1, 1)))) {
+			List<String> sources = new ArrayList<>();
+			List<String> destinations = new ArrayList<>();
+			List<CompletableFuture<Boolean>> results = new ArrayList<>();
+			for (int i = 0; i < calls; i++) {
+				sources.add(PMO_PhoneNumberGenerator.getNumber());
+				destinations.add(PMO_PhoneNumberGenerator.getNumber());
+				system.phoneRegistration(sources.get(i), new PMO_PhoneInterfaceImplementation());
+				system.phoneRegistration(destinations.get(i), gateway);
+				system.subscriptionPurchase(sources.get(i), 10000L);
+				results.add(system.connectionAsync(sources.get(i), destinations.get(i)));
+			}
+			assertEquals(calls, decisions.size(), "Oczekiwano wywołania newConnectionAsync dla każdego połączenia");
+			assertEquals(calls, system.getMetrics().getRingingCalls(), "Wszystkie połączenia powinny oczekiwać na decyzję");
+
+			for (int i = 0; i < calls - 1; i++)
+				decisions.get(sources.get(i)).complete(i % 2 == 0);
+			for (int i = 0; i < calls - 1; i++) {
+				assertEquals(i % 2 == 0, results.get(i).join(), "Błędny wynik połączenia " + i);
+				assertEquals(i % 2 == 0, PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(i))),
+						"Błędny stan numeru po decyzji telefonu");
+			}
+
+			time.advance(1000L);
+			assertFalse(results.get(calls - 1).join(), "Połączenie bez decyzji powinno zostać odrzucone po limicie");
+			assertTrue(decisions.get(sources.get(calls - 1)).isCancelled(),
+					"Po upływie limitu wynik newConnectionAsync powinien zostać anulowany");
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(destinations.get(calls - 1))),
+					"Po upływie limitu numer nie może być zajęty");
+
+			for (boolean fails : new boolean[] { false, true }) {
+				String source = PMO_PhoneNumberGenerator.getNumber();
+				String destination = PMO_PhoneNumberGenerator.getNumber();
+				system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+				system.phoneRegistration(destination, new AsyncPhoneInterface() {
+					@Override
+					public CompletableFuture<Boolean> newConnectionAsync(String number) {
+						if (fails)
+							throw new AssertionError("newConnectionAsync");
+						return null;
+					}
+
+					@Override
+					public void connectionClosed(String number) {
+					}
+				});
+				system.subscriptionPurchase(source, 10000L);
+				assertFalse(system.connectionAsync(source, destination).join(),
+						"Błąd lub null z newConnectionAsync powinny odrzucić połączenie");
+				assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(source)),
+						"Po odrzuceniu numer nie może być zajęty");
+			}
+			assertEquals(0, system.getMetrics().getRingingCalls(), "Żadne połączenie nie powinno oczekiwać na decyzję");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// saldo w trakcie połączenia i zakup przesuwający automatyczne rozłączenie
+	public void liveRemainingTime() {
+		VirtualTimeSource time = new VirtualTimeSource();
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().timeSource(time))) {
+			String source = PMO_PhoneNumberGenerator.getNumber();
+			String destination = PMO_PhoneNumberGenerator.getNumber();
+			PMO_PhoneInterfaceImplementation sourcePhone = new PMO_PhoneInterfaceImplementation();
+			system.phoneRegistration(source, sourcePhone);
+			system.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			system.subscriptionPurchase(source, 10000L);
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+
+			time.advance(3000L);
+			assertEquals(7000L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Saldo w trakcie połączenia powinno uwzględniać czas rozmowy");
+			assertEquals(12000L, system.subscriptionPurchase(source, 5000L),
+					"Wynik zakupu powinien uwzględniać czas trwającego połączenia");
+
+			time.advance(11000L);
+			assertTrue(PMO_OptionalHelper.testAndGet(system.isConnected(source)),
+					"Zakup w trakcie połączenia powinien przesunąć automatyczne rozłączenie");
+			assertEquals(1000L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Błędne saldo w trakcie połączenia");
+
+			time.advance(1000L);
+			assertFalse(PMO_OptionalHelper.testAndGet(system.isConnected(source)),
+					"Połączenie powinno zostać automatycznie zakończone");
+			assertTrue(awaitConnectionClosed(sourcePhone), "Oczekiwano wykonania connectionClosed");
+			assertEquals(0L, (long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(source)),
+					"Po automatycznym rozłączeniu na koncie nie powinno zostać czasu");
+			assertEquals(15000L, (long) PMO_OptionalHelper.testAndGet(system.getBilling(source, destination)),
+					"Biling powinien obejmować cały wykupiony czas");
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// rejestracja i zakupy partiami, utrwalane w dzienniku
+	public void batchRegistrationAndPurchase() throws IOException {
+		final int phones = 1000;
+		Path directory = Files.createTempDirectory("PMO_journal");
+		AccountingSystemConfig config = new AccountingSystemConfig().journal(directory);
+		String[] numbers = new String[phones + 1];
+		PhoneInterface[] interfaces = new PhoneInterface[phones + 1];
+		long[] times = new long[phones + 1];
+		for (int i = 0; i < phones; i++) {
+			numbers[i] = PMO_PhoneNumberGenerator.getNumber();
+			interfaces[i] = new PMO_PhoneInterfaceImplementation();
+			times[i] = i + 1;
+		}
+		numbers[phones] = numbers[0];
+		interfaces[phones] = interfaces[0];
+		times[phones] = 1000L;
+
+		int[] handles;
+		try (AccountingSystem system = new AccountingSystem(config)) {
+			handles = system.phoneRegistration(numbers, interfaces);
+			assertEquals(phones, IntStream.of(handles).distinct().count(), "Uchwyty numerów powinny być unikalne");
+			assertEquals(handles[0], handles[phones], "Ponowna rejestracja numeru powinna zwrócić ten sam uchwyt");
+			for (int i = 0; i < phones; i++)
+				assertEquals(handles[i], system.phoneRegistration(numbers[i], interfaces[i]),
+						"Uchwyt z rejestracji partiami powinien być zgodny z rejestracją pojedynczą");
+
+			long[] remainingTimes;
+			Path events = Files.createTempFile("PMO_events", ".jfr");
+			try (Recording recording = new Recording()) {
+				recording.enable("AccountingSystem.Purchase");
+				recording.start();
+				remainingTimes = system.subscriptionPurchase(numbers, times);
+				recording.stop();
+				recording.dump(events);
+				assertEquals(phones + 1, RecordingFile.readAllEvents(events).stream()
+						.filter(event -> event.getEventType().getName().equals("AccountingSystem.Purchase")).count(),
+						"Każdy zakup z partii powinien zostać zarejestrowany zdarzeniem Purchase");
+			} finally {
+				Files.deleteIfExists(events);
+			}
+			for (int i = 1; i < phones; i++)
+				assertEquals(i + 1, remainingTimes[i], "Błędny wynik zakupu dla numeru " + numbers[i]);
+			assertTrue(remainingTimes[0] == 1L || remainingTimes[0] == 1001L, "Błędny wynik zakupu");
+			assertEquals(AccountingSystemInterface.NOT_REGISTERED,
+					system.subscriptionPurchase(new String[] { "unknown" }, new long[] { 1L })[0],
+					"Dla nieznanego numeru oczekiwano wyniku NOT_REGISTERED");
+		}
+
+		try (AccountingSystem system = new AccountingSystem(config)) {
+			for (int i = 0; i < phones; i++)
+				assertEquals(i == 0 ? 1001L : i + 1,
+						(long) PMO_OptionalHelper.testAndGet(system.getRemainingTime(numbers[i])),
+						"Stan konta odtworzony z dziennika nie zgadza się z zakupami");
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				files.forEach(file -> file.toFile().delete());
+			}
+			Files.delete(directory);
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// odczyty stanu w trakcie równoległych zakupów są spójne i nie tworzą obiektów
+	public void allocationFreeReadsDuringPurchases() throws InterruptedException {
+		final int reads = 100000;
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		VirtualTimeSource time = new VirtualTimeSource();
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().timeSource(time))) {
+			String source = PMO_PhoneNumberGenerator.getNumber();
+			String destination = PMO_PhoneNumberGenerator.getNumber();
+			int handle = system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+			system.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			system.subscriptionPurchase(handle, 10000L);
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+			time.advance(4000L);
+
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread(() -> {
+				while (running.get()) {
+					system.subscriptionPurchase(handle, 5000L);
+					system.subscriptionPurchase(handle, -5000L);
+				}
+			});
+			writer.start();
+			try {
+				for (int i = 0; i < reads; i++)
+					system.isConnected(handle);
+				long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+				boolean connected = true;
+				for (int i = 0; i < reads; i++)
+					connected &= system.isConnected(handle).get();
+				long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+				assertTrue(connected, "Zakupy nie mogą zmieniać stanu połączenia");
+				assertTrue(allocated < reads, "Odczyty isConnected nie powinny tworzyć obiektów, zaalokowano "
+						+ allocated + " B na " + reads + " odczytów");
+
+				for (int i = 0; i < reads; i++) {
+					long remainingTime = PMO_OptionalHelper.testAndGet(system.getRemainingTime(handle));
+					assertTrue(remainingTime == 6000L || remainingTime == 11000L,
+							"Niespójny odczyt salda w trakcie połączenia: " + remainingTime);
+				}
+			} finally {
+				running.set(false);
+				writer.join();
+			}
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// obraz stanu nie zmienia się po późniejszych zakupach i połączeniach
+	public void consistentSnapshot() {
+		VirtualTimeSource time = new VirtualTimeSource();
+		try (AccountingSystem system = new AccountingSystem(new AccountingSystemConfig().timeSource(time))) {
+			String source = PMO_PhoneNumberGenerator.getNumber();
+			String destination = PMO_PhoneNumberGenerator.getNumber();
+			String other = PMO_PhoneNumberGenerator.getNumber();
+			system.phoneRegistration(source, new PMO_PhoneInterfaceImplementation());
+			system.phoneRegistration(destination, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), destination, true));
+			system.phoneRegistration(other, new PMO_PhoneInterfaceImplementation(
+					new PMO_Barrier(1, false, false, false, "local barrier"), other, true));
+			system.subscriptionPurchase(source, 10000L);
+			assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+			time.advance(3000L);
+			system.disconnection(source);
+			assertTrue(system.connection(source, other), "Oczekiwano, że połączenie zostanie nawiązane");
+			time.advance(2000L);
+
+			try (AccountingSystem.Snapshot snapshot = system.snapshot()) {
+				time.advance(1000L);
+				system.disconnection(source);
+				system.subscriptionPurchase(source, 1000L);
+				assertTrue(system.connection(source, destination), "Oczekiwano, że połączenie zostanie nawiązane");
+				system.phoneRegistration(PMO_PhoneNumberGenerator.getNumber(), new PMO_PhoneInterfaceImplementation());
+
+				assertEquals(5000L, (long) PMO_OptionalHelper.testAndGet(snapshot.getRemainingTime(source)),
+						"Obraz powinien zawierać saldo z chwili utworzenia");
+				assertTrue(PMO_OptionalHelper.testAndGet(snapshot.isConnected(other)),
+						"Obraz powinien zawierać połączenie trwające w chwili utworzenia");
+				assertFalse(PMO_OptionalHelper.testAndGet(snapshot.isConnected(destination)),
+						"Obraz nie może zawierać późniejszego połączenia");
+				assertEquals(3000L, (long) PMO_OptionalHelper.testAndGet(snapshot.getBilling(source, destination)),
+						"Obraz powinien zawierać biling z chwili utworzenia");
+				assertEquals(0L, (long) PMO_OptionalHelper.testAndGet(snapshot.getBilling(source, other)),
+						"Obraz nie może zawierać bilingu późniejszego rozłączenia");
+				assertEquals(3000L, (long) PMO_OptionalHelper.testAndGet(system.getBilling(source, other)),
+						"Błędny biling bieżący");
+
+				AtomicInteger accounts = new AtomicInteger();
+				snapshot.forEachAccount((number, remainingTime, connected) -> accounts.incrementAndGet());
+				assertEquals(3, accounts.get(), "Obraz nie może zawierać numerów zarejestrowanych później");
+				List<String> calls = new ArrayList<>();
+				snapshot.forEachCall((numberFrom, numberTo, duration) -> calls.add(numberFrom + "->" + numberTo + ":" + duration));
+				assertEquals(List.of(source + "->" + other + ":2000"), calls, "Błędna lista połączeń w obrazie");
+				AtomicLong billed = new AtomicLong();
+				snapshot.forEachBilling((numberFrom, numberTo, total) -> billed.addAndGet(total));
+				assertEquals(3000L, billed.get(), "Błędna suma bilingu w obrazie");
+			}
+		}
+	}
+
+	@Test
+	@Tariff(1.0)
+	// obraz tworzony w trakcie zakupów zawiera spójny, niezmienny prefiks zakupów
+	public void snapshotDuringPurchases() throws InterruptedException {
+		final int snapshots = 1000;
+		try (AccountingSystem system = new AccountingSystem()) {
+			String first = PMO_PhoneNumberGenerator.getNumber();
+			String second = PMO_PhoneNumberGenerator.getNumber();
+			int firstHandle = system.phoneRegistration(first, new PMO_PhoneInterfaceImplementation());
+			int secondHandle = system.phoneRegistration(second, new PMO_PhoneInterfaceImplementation());
+
+			AtomicBoolean running = new AtomicBoolean(true);
+			Thread writer = new Thread(() -> {
+				while (running.get()) {
+					system.subscriptionPurchase(firstHandle, 1L);
+					system.subscriptionPurchase(secondHandle, 1L);
+				}
+			});
+			writer.start();
+			try {
+				for (int i = 0; i < snapshots; i++) {
+					try (AccountingSystem.Snapshot snapshot = system.snapshot()) {
+						long firstTime = PMO_OptionalHelper.testAndGet(snapshot.getRemainingTime(first));
+						long secondTime = PMO_OptionalHelper.testAndGet(snapshot.getRemainingTime(second));
+						assertTrue(firstTime == secondTime || firstTime == secondTime + 1,
+								"Obraz zawiera zakup bez zakupu poprzedzającego: " + firstTime + ", " + secondTime);
+						Thread.yield();
+						assertEquals(firstTime, (long) PMO_OptionalHelper.testAndGet(snapshot.getRemainingTime(first)),
+								"Obraz nie może zmieniać się po późniejszych zakupach");
+						assertEquals(secondTime, (long) PMO_OptionalHelper.testAndGet(snapshot.getRemainingTime(second)),
+								"Obraz nie może zmieniać się po późniejszych zakupach");
+					}
+				}
+			} finally {
+				running.set(false);
+				writer.join();
+			}
+		}
+	}
+
 	@AfterEach
 	public void shutdown() {
+		if (asi instanceof AutoCloseable) {
+			try {
+				((AutoCloseable) asi).close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 }
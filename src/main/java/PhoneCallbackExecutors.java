@@ -0,0 +1,66 @@
+import java.lang.reflect.Method;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Strategie wykonywania metod PhoneInterface przez AccountingSystem.
+ */
+public final class PhoneCallbackExecutors {
+
+    private static final int THREADS_PER_CORE = 64;
+    private static final int MIN_THREADS = 512;
+    private static final int QUEUE_PER_THREAD = 16;
+
+    private PhoneCallbackExecutors() {
+    }
+
+    /**
+     * Ograniczona pula wątków platformowych. Zadania, które nie mieszczą się
+     * w kolejce, są odrzucane wyjątkiem RejectedExecutionException.
+     */
+    public static ExecutorService boundedPlatformPool(int maxThreads, int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                daemonThreadFactory("phone-callback-"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Osobny wątek wirtualny dla każdego zadania. Dostępne od JDK 21.
+     */
+    public static Optional<ExecutorService> virtualThreadPerTask() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return Optional.of((ExecutorService) factory.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Strategia domyślna - wątki wirtualne jeśli JDK je udostępnia, w innym
+     * przypadku pula wątków platformowych dobrana do liczby rdzeni.
+     */
+    public static ExecutorService hostDefault() {
+        return virtualThreadPerTask().orElseGet(() -> {
+            int threads = Math.max(MIN_THREADS, THREADS_PER_CORE * Runtime.getRuntime().availableProcessors());
+            return boundedPlatformPool(threads, threads * QUEUE_PER_THREAD);
+        });
+    }
+
+    static ThreadFactory daemonThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread th = new Thread(task, prefix + counter.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        };
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Kolejka powiadomień jednego telefonu. Powiadomienia wykonywane są w
+ * executorze poza wątkiem, który je zgłosił, pojedynczo i w kolejności
+ * zgłoszenia, więc wolny telefon opóźnia wyłącznie własne powiadomienia.
+ */
+final class PhoneNotifier implements Runnable {
+
+    private static final int BATCH = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> pending;
+    private final AtomicBoolean scheduled;
+
+    PhoneNotifier(Executor executor) {
+        this.executor = executor;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean();
+    }
+
+    void submit(Runnable notification) {
+        this.pending.add(notification);
+        this.schedule();
+    }
+
+    private void schedule() {
+        if (!this.scheduled.compareAndSet(false, true))
+            return;
+        try {
+            this.executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            this.run();
+        }
+    }
+
+    /**
+     * Wykonuje co najwyżej BATCH powiadomień, po czym oddaje wątek executora,
+     * by jeden telefon z długą kolejką nie zajmował go na stałe. Kolejka
+     * planowana jest ponownie także wtedy, gdy powiadomienie zakończy się
+     * błędem (Error).
+     */
+    @Override
+    public void run() {
+        try {
+            Runnable notification;
+            for (int i = 0; i < BATCH && (notification = this.pending.poll()) != null; i++) {
+                try {
+                    notification.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            this.scheduled.set(false);
+            if (!this.pending.isEmpty())
+                this.schedule();
+        }
+    }
+}
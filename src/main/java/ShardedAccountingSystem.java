@@ -0,0 +1,686 @@
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Wariant AccountingSystem, w którym numery podzielone są między N shardów
+ * (domyślnie jeden na rdzeń). Każdy shard ma własny wątek, który jako jedyny
+ * modyfikuje jego konta, wiersze bilingu i terminy automatycznych rozłączeń,
+ * wykonując polecenia z nieblokującej kolejki. Odczyty (getRemainingTime,
+ * isConnected, getBilling) nie przechodzą przez kolejkę.
+ *
+ * Połączenie między shardami zestawiane jest dwufazowo: shard dzwoniącego
+ * rezerwuje jego konto i prosi shard odbierającego o rezerwację; po decyzji
+ * telefonu oba shardy zatwierdzają (CONNECTED) albo zwalniają rezerwację.
+ * Połączeniem, jego rozliczeniem i bilingiem zarządza shard dzwoniącego.
+ */
+public class ShardedAccountingSystem implements AccountingSystemInterface, AutoCloseable {
+
+    private static final int IDLE = 0;
+    private static final int RESERVED = 1;
+    private static final int CONNECTED = 2;
+
+    private final Shard[] shards;
+    private final ExecutorService executorService;
+    private final boolean ownsExecutorService;
+    private final TimeSource timeSource;
+    private final ShardTimers timers;
+
+    public ShardedAccountingSystem() {
+        this(new AccountingSystemConfig());
+    }
+
+    public ShardedAccountingSystem(AccountingSystemConfig config) {
+        this.executorService = config.getCallbackExecutor();
+        this.ownsExecutorService = !config.hasCallbackExecutor();
+        this.timeSource = config.getTimeSource();
+        this.shards = new Shard[config.getShards()];
+        for (int i = 0; i < this.shards.length; i++)
+            this.shards[i] = new Shard(i);
+        this.timers = new ShardTimers();
+        boolean driven = this.timeSource.attach(this.timers);
+        for (Shard shard : this.shards) {
+            shard.driven = driven;
+            shard.thread.start();
+        }
+    }
+
+    @Override
+    public int phoneRegistration(String number, PhoneInterface phone) {
+        Shard shard = this.shardOf(number);
+        Account account = shard.numbers.get(number);
+        if (account != null && account.phone != null)
+            return account.handle;
+        return shard.call(() -> shard.register(number, phone));
+    }
+
+    @Override
+    public long subscriptionPurchase(String number, long time) {
+        return this.subscriptionPurchase(this.find(number), time);
+    }
+
+    @Override
+    public long subscriptionPurchase(int handle, long time) {
+        return this.subscriptionPurchase(this.find(handle), time);
+    }
+
+    private long subscriptionPurchase(Account account, long time) {
+        if (account == null)
+            return 0L;
+        return account.shard.call(() -> {
+            Balance balance = account.balance.add(time);
+            account.balance = balance;
+            Call call = account.call;
+            if (call != null && call.caller == account && account.state == CONNECTED)
+                account.shard.reschedule(call, balance.deadline());
+            return balance.remaining(this.timeSource.currentMillis());
+        });
+    }
+
+    @Override
+    public Optional<Long> getRemainingTime(String number) {
+        return this.getRemainingTime(this.find(number));
+    }
+
+    @Override
+    public Optional<Long> getRemainingTime(int handle) {
+        return this.getRemainingTime(this.find(handle));
+    }
+
+    private Optional<Long> getRemainingTime(Account account) {
+        if (account == null)
+            return Optional.empty();
+        return Optional.of(account.balance.remaining(this.timeSource.currentMillis()));
+    }
+
+    @Override
+    public boolean connection(String numberFrom, String numberTo) {
+        return this.connection(this.connectionAsync(numberFrom, numberTo));
+    }
+
+    @Override
+    public boolean connection(int handleFrom, int handleTo) {
+        return this.connection(this.connectionAsync(handleFrom, handleTo));
+    }
+
+    private boolean connection(CompletableFuture<Boolean> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public CompletableFuture<Boolean> connectionAsync(String numberFrom, String numberTo) {
+        return this.connectionAsync(this.find(numberFrom), this.find(numberTo));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> connectionAsync(int handleFrom, int handleTo) {
+        return this.connectionAsync(this.find(handleFrom), this.find(handleTo));
+    }
+
+    private CompletableFuture<Boolean> connectionAsync(Account caller, Account callee) {
+        if (caller == null || callee == null || caller == callee)
+            return CompletableFuture.completedFuture(false);
+        Call call = new Call(caller, callee);
+        caller.shard.submit(call.established, () -> this.reserveCaller(call));
+        return call.established;
+    }
+
+    /**
+     * Faza 1, shard dzwoniącego: rezerwacja dzwoniącego.
+     */
+    private void reserveCaller(Call call) {
+        Account caller = call.caller;
+        if (caller.state != IDLE || caller.balance.balance <= 0L || caller.phone == null || call.callee.phone == null) {
+            call.established.complete(false);
+            return;
+        }
+        caller.state = RESERVED;
+        caller.call = call;
+        call.callee.shard.submit(call.established, () -> this.reserveCallee(call));
+    }
+
+    /**
+     * Faza 1, shard odbierającego: rezerwacja odbierającego i wywołanie
+     * newConnection w executorze.
+     */
+    private void reserveCallee(Call call) {
+        Account callee = call.callee;
+        if (callee.state != IDLE) {
+            call.caller.shard.submit(call.established, () -> this.releaseCaller(call));
+            return;
+        }
+        callee.state = RESERVED;
+        callee.call = call;
+        try {
+            this.executorService.execute(() -> this.ring(call));
+        } catch (RejectedExecutionException e) {
+            this.releaseCallee(call);
+        }
+    }
+
+    /**
+     * Rezerwacje zwalniane są w finally - także wtedy, gdy newConnection
+     * zakończy się błędem (Error), który przerwie wątek executora.
+     */
+    private void ring(Call call) {
+        boolean accepted = false;
+        try {
+            accepted = call.callee.phone.newConnection(call.caller.number);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            if (accepted)
+                call.callee.shard.submit(call.established, () -> this.commitCallee(call));
+            else
+                call.callee.shard.submit(call.established, () -> this.releaseCallee(call));
+        }
+    }
+
+    /**
+     * Faza 2: zatwierdzenie w shardzie odbierającego, a następnie dzwoniącego.
+     */
+    private void commitCallee(Call call) {
+        call.callee.state = CONNECTED;
+        call.caller.shard.submit(call.established, () -> this.commitCaller(call));
+    }
+
+    private void commitCaller(Call call) {
+        Account caller = call.caller;
+        caller.state = CONNECTED;
+        caller.balance = caller.balance.reserve(this.timeSource.currentMillis());
+        call.deadline = caller.balance.deadline();
+        caller.shard.schedule(call, call.deadline);
+        call.established.complete(true);
+    }
+
+    private void releaseCallee(Call call) {
+        call.callee.state = IDLE;
+        call.callee.call = null;
+        call.caller.shard.submit(call.established, () -> this.releaseCaller(call));
+    }
+
+    private void releaseCaller(Call call) {
+        call.caller.state = IDLE;
+        call.caller.call = null;
+        call.established.complete(false);
+    }
+
+    @Override
+    public void disconnection(String number) {
+        this.disconnection(this.find(number));
+    }
+
+    @Override
+    public void disconnection(int handle) {
+        this.disconnection(this.find(handle));
+    }
+
+    private void disconnection(Account account) {
+        if (account == null)
+            return;
+        CompletableFuture<Call> finished = new CompletableFuture<>();
+        account.shard.submit(finished, () -> {
+            Call call = account.call;
+            if (call == null || account.state != CONNECTED)
+                finished.complete(null);
+            else if (account == call.caller)
+                this.finish(call, finished, false);
+            else
+                call.caller.shard.submit(finished, () -> this.finish(call, finished, false));
+        });
+        Call call = finished.join();
+        if (call != null)
+            this.connectionClosed(call);
+    }
+
+    /**
+     * Shard dzwoniącego: rozliczenie i zakończenie połączenia, następnie
+     * zwolnienie odbierającego w jego shardzie.
+     */
+    private void finish(Call call, CompletableFuture<Call> finished, boolean automatic) {
+        Account caller = call.caller;
+        if (call.closed || caller.call != call) {
+            finished.complete(null);
+            return;
+        }
+        call.closed = true;
+        if (!automatic)
+            caller.shard.cancelled();
+
+        Balance balance = caller.balance;
+        long duration = balance.used(this.timeSource.currentMillis());
+        caller.balance = balance.settle(duration);
+        caller.shard.billing.add(caller.handle, call.callee.handle, duration);
+        caller.state = IDLE;
+        caller.call = null;
+
+        call.callee.shard.submit(finished, () -> {
+            Account callee = call.callee;
+            if (callee.call == call) {
+                callee.state = IDLE;
+                callee.call = null;
+            }
+            finished.complete(call);
+        });
+    }
+
+    private void automaticDisconnection(Call call) {
+        CompletableFuture<Call> finished = new CompletableFuture<>();
+        this.finish(call, finished, true);
+        finished.thenAccept(closed -> {
+            if (closed != null)
+                this.connectionClosed(closed);
+        });
+    }
+
+    /**
+     * Zleca powiadomienia connectionClosed; dostarczane są w executorze, w
+     * kolejności zleceń dla każdego telefonu.
+     */
+    private void connectionClosed(Call call) {
+        PhoneInterface callerPhone = call.caller.phone;
+        PhoneInterface calleePhone = call.callee.phone;
+        call.caller.notifier.submit(() -> callerPhone.connectionClosed(call.callee.number));
+        call.callee.notifier.submit(() -> calleePhone.connectionClosed(call.caller.number));
+    }
+
+    @Override
+    public Optional<Long> getBilling(String numberFrom, String numberTo) {
+        return this.getBilling(this.find(numberFrom), this.find(numberTo));
+    }
+
+    @Override
+    public Optional<Long> getBilling(int handleFrom, int handleTo) {
+        return this.getBilling(this.find(handleFrom), this.find(handleTo));
+    }
+
+    private Optional<Long> getBilling(Account caller, Account callee) {
+        if (caller == null || callee == null)
+            return Optional.empty();
+        return Optional.of(caller.shard.billing.get(caller.handle, callee.handle));
+    }
+
+    @Override
+    public Optional<Boolean> isConnected(String number) {
+        return this.isConnected(this.find(number));
+    }
+
+    @Override
+    public Optional<Boolean> isConnected(int handle) {
+        return this.isConnected(this.find(handle));
+    }
+
+    private Optional<Boolean> isConnected(Account account) {
+        if (account == null)
+            return Optional.empty();
+        return Optional.of(account.state == CONNECTED);
+    }
+
+    /**
+     * Zatrzymuje wątki shardów i zamyka executor utworzony przez system.
+     * Polecenia, które nie zostały wykonane, kończą się wyjątkiem
+     * IllegalStateException, podobnie jak późniejsze wywołania metod
+     * wymagających shardu.
+     */
+    @Override
+    public void close() {
+        this.timeSource.detach(this.timers);
+        for (Shard shard : this.shards)
+            shard.stop();
+        if (this.ownsExecutorService)
+            this.executorService.shutdown();
+    }
+
+    private Shard shardOf(String number) {
+        int hash = number.hashCode();
+        hash ^= hash >>> 16;
+        return this.shards[Math.floorMod(hash * 0x9E3779B9, this.shards.length)];
+    }
+
+    private Account find(String number) {
+        return this.shardOf(number).numbers.get(number);
+    }
+
+    private Account find(int handle) {
+        if (handle < 0)
+            return null;
+        return this.shards[handle % this.shards.length].accounts.get(handle / this.shards.length);
+    }
+
+    /**
+     * Jedna próba połączenia. Pola zmienia tylko shard dzwoniącego.
+     */
+    private static class Call {
+        final Account caller;
+        final Account callee;
+        final CompletableFuture<Boolean> established;
+        long deadline;
+        boolean closed;
+
+        Call(Account caller, Account callee) {
+            this.caller = caller;
+            this.callee = callee;
+            this.established = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * Konto numeru. Modyfikuje je wyłącznie wątek shardu; pola volatile
+     * odczytywane są bezpośrednio przez inne wątki.
+     */
+    private static class Account {
+        final String number;
+        final int handle;
+        final Shard shard;
+        final PhoneNotifier notifier;
+        volatile PhoneInterface phone;
+        volatile Balance balance;
+        volatile int state;
+        Call call;
+
+        Account(String number, int handle, Shard shard, PhoneInterface phone, PhoneNotifier notifier) {
+            this.number = number;
+            this.handle = handle;
+            this.shard = shard;
+            this.phone = phone;
+            this.notifier = notifier;
+            this.balance = Balance.EMPTY;
+        }
+    }
+
+    /**
+     * Saldo konta wraz z chwilą rozpoczęcia trwającego połączenia, w którym
+     * konto dzwoni. Obiekty są niezmienne i podmieniane przez wątek shardu,
+     * więc inne wątki zawsze odczytują oba pola z tej samej chwili.
+     */
+    private static final class Balance {
+        static final long NOT_RESERVED = Long.MIN_VALUE;
+        static final Balance EMPTY = new Balance(0L, NOT_RESERVED);
+
+        final long balance;
+        final long reservedAt;
+
+        Balance(long balance, long reservedAt) {
+            this.balance = balance;
+            this.reservedAt = reservedAt;
+        }
+
+        /**
+         * @return czas trwającego połączenia w chwili now, ograniczony saldem
+         */
+        long used(long now) {
+            if (this.reservedAt == NOT_RESERVED)
+                return 0L;
+            return Math.min(Math.max(0L, this.balance), Math.max(0L, now - this.reservedAt));
+        }
+
+        long remaining(long now) {
+            return this.balance - this.used(now);
+        }
+
+        /**
+         * @return chwila wyczerpania salda przez trwające połączenie
+         */
+        long deadline() {
+            long balance = Math.max(0L, this.balance);
+            return balance > Long.MAX_VALUE - this.reservedAt ? Long.MAX_VALUE : this.reservedAt + balance;
+        }
+
+        Balance add(long time) {
+            return new Balance(this.balance + time, this.reservedAt);
+        }
+
+        Balance reserve(long now) {
+            return new Balance(this.balance, now);
+        }
+
+        Balance settle(long duration) {
+            return new Balance(this.balance - duration, NOT_RESERVED);
+        }
+    }
+
+    private static class Timer {
+        final long deadline;
+        final Call call;
+
+        Timer(long deadline, Call call) {
+            this.deadline = deadline;
+            this.call = call;
+        }
+
+        /**
+         * @return true, jeśli połączenie zakończono albo przesunięto jego termin
+         */
+        boolean isStale() {
+            return this.call.closed || this.call.deadline != this.deadline;
+        }
+    }
+
+    /**
+     * Polecenie w kolejce shardu. result kończy się wyjątkiem, gdy polecenie
+     * zawiedzie albo shard zostanie zatrzymany przed jego wykonaniem.
+     */
+    private static final class Command {
+        final CompletableFuture<?> result;
+        final Runnable action;
+
+        Command(CompletableFuture<?> result, Runnable action) {
+            this.result = result;
+            this.action = action;
+        }
+
+        void run() {
+            try {
+                this.action.run();
+            } catch (Throwable e) {
+                this.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Terminy automatycznych rozłączeń wszystkich shardów dla źródła czasu
+     * wirtualnego. Minione terminy wykonywane są równolegle w wątkach shardów;
+     * następnie jedna runda pustych poleceń we wszystkich shardach czeka na
+     * dokończenie wynikających z nich rozłączeń w shardach odbierających.
+     */
+    private class ShardTimers implements TimeSource.Timers {
+        @Override
+        public long nextExpiration() {
+            long next = Long.MAX_VALUE;
+            for (Shard shard : shards)
+                next = Math.min(next, shard.nextDeadline);
+            return next;
+        }
+
+        @Override
+        public void expire(long nowMs) {
+            CompletableFuture<?>[] done = new CompletableFuture<?>[shards.length];
+            for (int i = 0; i < shards.length; i++)
+                done[i] = shards[i].callAsync(shards[i]::expireTimers);
+            CompletableFuture.allOf(done).join();
+            for (int i = 0; i < shards.length; i++)
+                done[i] = shards[i].callAsync(() -> null);
+            CompletableFuture.allOf(done).join();
+        }
+    }
+
+    /**
+     * Shard sterowany czasem wirtualnym (driven) nie czeka na terminy sam -
+     * wykonuje je na polecenie źródła czasu (ShardTimers).
+     */
+    private class Shard implements Runnable {
+        final int index;
+        final Thread thread;
+        final Queue<Command> commands;
+        final ConcurrentHashMap<String, Account> numbers;
+        final HandleTable<Account> accounts;
+        final BillingMatrix billing;
+        final PriorityQueue<Timer> timers;
+        int registered;
+        int cancelledTimers;
+        boolean driven;
+        volatile long nextDeadline;
+        volatile boolean parked;
+        volatile boolean running;
+
+        Shard(int index) {
+            this.index = index;
+            this.commands = new ConcurrentLinkedQueue<>();
+            this.numbers = new ConcurrentHashMap<>();
+            this.accounts = new HandleTable<>();
+            this.billing = new BillingMatrix();
+            this.timers = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+            this.nextDeadline = Long.MAX_VALUE;
+            this.running = true;
+            this.thread = new Thread(this, "accounting-shard-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * @param result wynik kończony wyjątkiem, jeśli polecenie zawiedzie albo
+         *               nie zostanie wykonane
+         * @throws IllegalStateException gdy shard został zatrzymany
+         */
+        void submit(CompletableFuture<?> result, Runnable action) {
+            if (!this.running) {
+                IllegalStateException e = new IllegalStateException("shard " + this.index + " zatrzymany");
+                result.completeExceptionally(e);
+                throw e;
+            }
+            this.commands.add(new Command(result, action));
+            if (!this.running)
+                this.failPending();
+            else if (this.parked)
+                LockSupport.unpark(this.thread);
+        }
+
+        <T> CompletableFuture<T> callAsync(Supplier<T> command) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            this.submit(result, () -> {
+                try {
+                    result.complete(command.get());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            return result;
+        }
+
+        <T> T call(Supplier<T> command) {
+            return this.callAsync(command).join();
+        }
+
+        int register(String number, PhoneInterface phone) {
+            Account account = this.numbers.get(number);
+            if (account == null) {
+                int local = this.registered++;
+                account = new Account(number, local * shards.length + this.index, this, phone,
+                        new PhoneNotifier(executorService));
+                this.accounts.set(local, account);
+                this.numbers.put(number, account);
+            } else if (account.phone == null) {
+                account.phone = phone;
+            }
+            return account.handle;
+        }
+
+        void schedule(Call call, long deadline) {
+            this.timers.add(new Timer(deadline, call));
+            this.nextDeadline = this.timers.peek().deadline;
+        }
+
+        /**
+         * Przesuwa automatyczne rozłączenie po zmianie salda dzwoniącego.
+         * Poprzedni termin zostaje w kolejce i jest pomijany jak termin
+         * zakończonego połączenia.
+         */
+        void reschedule(Call call, long deadline) {
+            if (call.closed || call.deadline == deadline)
+                return;
+            call.deadline = deadline;
+            this.schedule(call, deadline);
+            this.cancelled();
+        }
+
+        /**
+         * Nieaktualne terminy usuwane są z kolejki leniwie, gdy stanowią ponad
+         * połowę jej zawartości.
+         */
+        void cancelled() {
+            if (++this.cancelledTimers > this.timers.size() / 2) {
+                this.timers.removeIf(Timer::isStale);
+                this.cancelledTimers = 0;
+                Timer next = this.timers.peek();
+                this.nextDeadline = next == null ? Long.MAX_VALUE : next.deadline;
+            }
+        }
+
+        void stop() {
+            this.running = false;
+            LockSupport.unpark(this.thread);
+            this.failPending();
+        }
+
+        /**
+         * Kończy wyjątkiem polecenia, których zatrzymany shard już nie wykona.
+         */
+        private void failPending() {
+            Command command;
+            while ((command = this.commands.poll()) != null)
+                command.result.completeExceptionally(new IllegalStateException("shard " + this.index + " zatrzymany"));
+        }
+
+        @Override
+        public void run() {
+            while (this.running) {
+                Command command;
+                while ((command = this.commands.poll()) != null)
+                    command.run();
+
+                long wait = this.expireTimers();
+                this.parked = true;
+                if (this.commands.isEmpty() && this.running) {
+                    if (wait == Long.MAX_VALUE || this.driven)
+                        LockSupport.park(this);
+                    else
+                        LockSupport.parkNanos(this, Math.min(wait, Long.MAX_VALUE / 1000000L) * 1000000L);
+                }
+                this.parked = false;
+            }
+        }
+
+        /**
+         * @return czas w ms do najbliższego terminu lub Long.MAX_VALUE
+         */
+        private long expireTimers() {
+            while (true) {
+                Timer next = this.timers.peek();
+                this.nextDeadline = next == null ? Long.MAX_VALUE : next.deadline;
+                if (next == null)
+                    return Long.MAX_VALUE;
+                long wait = next.deadline - timeSource.currentMillis();
+                if (wait > 0L)
+                    return wait;
+                this.timers.poll();
+                if (!next.isStale())
+                    automaticDisconnection(next.call);
+                else
+                    this.cancelledTimers = Math.max(0, this.cancelledTimers - 1);
+            }
+        }
+    }
+}
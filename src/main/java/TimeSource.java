@@ -0,0 +1,48 @@
+/**
+ * Źródło czasu używane przez AccountingSystem i TimingWheel. Czas jest
+ * monotoniczny i wyrażony w milisekundach od nieokreślonej chwili początkowej,
+ * więc nadaje się wyłącznie do mierzenia odstępów.
+ */
+public interface TimeSource {
+
+    /**
+     * Zadania planowane według czasu TimeSource, np. TimingWheel albo terminy
+     * automatycznych rozłączeń shardów ShardedAccountingSystem.
+     */
+    interface Timers {
+        /**
+         * @return najbliższy termin, na który zaplanowano zadania, lub
+         *         Long.MAX_VALUE
+         */
+        long nextExpiration();
+
+        /**
+         * Wykonuje zadania z terminem nie późniejszym niż nowMs i wraca po ich
+         * zakończeniu.
+         */
+        void expire(long nowMs);
+    }
+
+    long currentMillis();
+
+    /**
+     * Przekazuje źródłu czasu zadania do sterowania.
+     *
+     * @return true, jeśli źródło samo wywołuje zaplanowane zadania (czas
+     *         wirtualny); false, jeśli timers mają czekać na nie własnym wątkiem
+     */
+    default boolean attach(Timers timers) {
+        return false;
+    }
+
+    default void detach(Timers timers) {
+    }
+
+    /**
+     * Czas systemowy oparty na System.nanoTime, odporny na korekty zegara
+     * (NTP, zmiana czasu przez użytkownika).
+     */
+    static TimeSource system() {
+        return () -> System.nanoTime() / 1000000L;
+    }
+}
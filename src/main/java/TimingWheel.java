@@ -0,0 +1,354 @@
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchiczne koło czasowe. Zadanie zaplanowane metodą schedule wykonywane
+ * jest dokładnie raz, chyba że wcześniej zostanie anulowane. Całość obsługuje
+ * jeden wątek zegara oraz niewielka, stała pula wątków wykonujących zadania.
+ * Koło sterowane przez źródło czasu wirtualnego (VirtualTimeSource) nie
+ * tworzy wątków - zadania wykonuje wątek przesuwający czas.
+ */
+public class TimingWheel implements TimeSource.Timers, AutoCloseable {
+
+    private final TimeSource timeSource;
+    private final boolean driven;
+    private final Level root;
+    private final long maxDelayMs;
+    private final PriorityQueue<Bucket> queue;
+    private final ReentrantLock queueLock;
+    private final Condition queueChanged;
+    private final ReentrantReadWriteLock wheelLock;
+    private final ExecutorService workers;
+    private final Thread ticker;
+    private final Queue<Runnable> due;
+
+    private volatile boolean running;
+
+    public TimingWheel(long tickMs, int wheelSize, int workerThreads) {
+        this(tickMs, wheelSize, workerThreads, TimeSource.system());
+    }
+
+    public TimingWheel(long tickMs, int wheelSize, int workerThreads, TimeSource timeSource) {
+        this.timeSource = timeSource;
+        this.due = new ConcurrentLinkedQueue<>();
+        this.queue = new PriorityQueue<>((a, b) -> Long.compare(a.getExpiration(), b.getExpiration()));
+        this.queueLock = new ReentrantLock();
+        this.queueChanged = this.queueLock.newCondition();
+        this.wheelLock = new ReentrantReadWriteLock();
+        this.root = new Level(tickMs, wheelSize, timeSource.currentMillis());
+
+        // Dłuższe opóźnienia przepełniłyby interwał kolejnych poziomów koła.
+        long interval = tickMs * wheelSize;
+        while (interval <= Long.MAX_VALUE / wheelSize)
+            interval *= wheelSize;
+        this.maxDelayMs = interval / 2;
+
+        this.running = true;
+        this.driven = timeSource.attach(this);
+        if (this.driven) {
+            this.workers = null;
+            this.ticker = null;
+            return;
+        }
+
+        AtomicInteger workerCounter = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread th = new Thread(task, "timing-wheel-worker-" + workerCounter.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+
+        this.ticker = new Thread(this::tick, "timing-wheel-ticker");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delayMs) {
+        Timeout timeout = new Timeout(task, this.getMilli() + Math.min(Math.max(0L, delayMs), this.maxDelayMs));
+        this.wheelLock.readLock().lock();
+        try {
+            this.addOrRun(timeout);
+        } finally {
+            this.wheelLock.readLock().unlock();
+        }
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        if (this.driven) {
+            this.timeSource.detach(this);
+            this.due.clear();
+            return;
+        }
+        this.ticker.interrupt();
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * Używane przez źródło czasu sterujące kołem.
+     */
+    @Override
+    public long nextExpiration() {
+        if (!this.due.isEmpty())
+            return this.getMilli();
+        this.queueLock.lock();
+        try {
+            Bucket head = this.queue.peek();
+            return head == null ? Long.MAX_VALUE : head.getExpiration();
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    /**
+     * Wykonuje zadania w bieżącym wątku. Używane przez źródło czasu sterujące
+     * kołem.
+     */
+    @Override
+    public void expire(long nowMs) {
+        while (this.running) {
+            Bucket bucket;
+            this.queueLock.lock();
+            try {
+                Bucket head = this.queue.peek();
+                if (head == null || head.getExpiration() > nowMs)
+                    break;
+                bucket = this.queue.poll();
+            } finally {
+                this.queueLock.unlock();
+            }
+            this.flush(bucket);
+        }
+        Runnable task;
+        while (this.running && (task = this.due.poll()) != null)
+            task.run();
+    }
+
+    private void addOrRun(Timeout timeout) {
+        if (!this.root.add(timeout) && timeout.expire()) {
+            if (this.driven)
+                this.due.add(timeout.task);
+            else
+                this.workers.execute(timeout.task);
+        }
+    }
+
+    private void flush(Bucket bucket) {
+        this.wheelLock.writeLock().lock();
+        try {
+            this.root.advance(bucket.getExpiration());
+            bucket.flush(this::addOrRun);
+        } finally {
+            this.wheelLock.writeLock().unlock();
+        }
+    }
+
+    private void enqueue(Bucket bucket) {
+        this.queueLock.lock();
+        try {
+            this.queue.add(bucket);
+            if (this.queue.peek() == bucket)
+                this.queueChanged.signal();
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    private Bucket awaitExpiredBucket() throws InterruptedException {
+        this.queueLock.lock();
+        try {
+            while (true) {
+                Bucket head = this.queue.peek();
+                if (head == null) {
+                    this.queueChanged.await();
+                    continue;
+                }
+                long delay = head.getExpiration() - this.getMilli();
+                if (delay > 0L) {
+                    this.queueChanged.await(delay, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+                return this.queue.poll();
+            }
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    private void tick() {
+        while (this.running) {
+            Bucket bucket;
+            try {
+                bucket = this.awaitExpiredBucket();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            this.flush(bucket);
+        }
+    }
+
+    private long getMilli() {
+        return this.timeSource.currentMillis();
+    }
+
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+
+        private volatile Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean cancel() {
+            if (!this.state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            Bucket current = this.bucket;
+            while (current != null) {
+                current.remove(this);
+                current = this.bucket;
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return this.state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+
+        private boolean expire() {
+            return this.state.compareAndSet(PENDING, EXPIRED);
+        }
+    }
+
+    private static class Bucket {
+        private final Timeout head;
+        private final AtomicLong expiration;
+
+        Bucket() {
+            this.head = new Timeout(null, -1L);
+            this.head.prev = this.head;
+            this.head.next = this.head;
+            this.expiration = new AtomicLong(-1L);
+        }
+
+        long getExpiration() {
+            return this.expiration.get();
+        }
+
+        boolean setExpiration(long expiration) {
+            return this.expiration.getAndSet(expiration) != expiration;
+        }
+
+        synchronized void add(Timeout timeout) {
+            Timeout tail = this.head.prev;
+            timeout.next = this.head;
+            timeout.prev = tail;
+            tail.next = timeout;
+            this.head.prev = timeout;
+            timeout.bucket = this;
+        }
+
+        synchronized void remove(Timeout timeout) {
+            if (timeout.bucket != this)
+                return;
+            timeout.next.prev = timeout.prev;
+            timeout.prev.next = timeout.next;
+            timeout.next = null;
+            timeout.prev = null;
+            timeout.bucket = null;
+        }
+
+        synchronized void flush(Consumer<Timeout> reinsert) {
+            Timeout current = this.head.next;
+            while (current != this.head) {
+                Timeout next = current.next;
+                this.remove(current);
+                if (!current.isCancelled())
+                    reinsert.accept(current);
+                current = next;
+            }
+            this.expiration.set(-1L);
+        }
+    }
+
+    private class Level {
+        private final long tickMs;
+        private final long interval;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private volatile Level overflow;
+
+        Level(long tickMs, int wheelSize, long startMs) {
+            this.tickMs = tickMs;
+            this.interval = tickMs * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            for (int i = 0; i < wheelSize; i++)
+                this.buckets[i] = new Bucket();
+            this.currentTime = startMs - (startMs % tickMs);
+        }
+
+        boolean add(Timeout timeout) {
+            long deadline = timeout.deadline;
+            if (timeout.isCancelled() || deadline < this.currentTime + this.tickMs)
+                return false;
+            if (deadline < this.currentTime + this.interval) {
+                long virtualId = deadline / this.tickMs;
+                Bucket bucket = this.buckets[(int) (virtualId % this.buckets.length)];
+                bucket.add(timeout);
+                if (bucket.setExpiration(virtualId * this.tickMs))
+                    enqueue(bucket);
+                return true;
+            }
+            return this.overflow().add(timeout);
+        }
+
+        void advance(long timeMs) {
+            if (timeMs >= this.currentTime + this.tickMs) {
+                this.currentTime = timeMs - (timeMs % this.tickMs);
+                Level next = this.overflow;
+                if (next != null)
+                    next.advance(this.currentTime);
+            }
+        }
+
+        private Level overflow() {
+            if (this.overflow == null) {
+                synchronized (this) {
+                    if (this.overflow == null)
+                        this.overflow = new Level(this.interval, this.buckets.length, this.currentTime);
+                }
+            }
+            return this.overflow;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Czas wirtualny przesuwany wyłącznie metodą advance. Zadania sterowane tym
+ * źródłem (np. automatyczne rozłączenia AccountingSystem i
+ * ShardedAccountingSystem) wykonywane są w trakcie advance, w kolejności
+ * terminów i przy czasie równym ich terminowi, więc scenariusze trwające
+ * godziny można odtworzyć deterministycznie w ciągu milisekund.
+ */
+public class VirtualTimeSource implements TimeSource {
+
+    private final List<Timers> timers;
+    private volatile long now;
+
+    public VirtualTimeSource() {
+        this(0L);
+    }
+
+    public VirtualTimeSource(long startMillis) {
+        this.timers = new CopyOnWriteArrayList<>();
+        this.now = startMillis;
+    }
+
+    @Override
+    public long currentMillis() {
+        return this.now;
+    }
+
+    /**
+     * Przesuwa czas o deltaMs, wykonując po drodze wszystkie zadania, których
+     * termin mija.
+     */
+    public synchronized void advance(long deltaMs) {
+        long target = this.now + Math.max(0L, deltaMs);
+        while (true) {
+            long next = Long.MAX_VALUE;
+            for (Timers scheduled : this.timers)
+                next = Math.min(next, scheduled.nextExpiration());
+            if (next > target)
+                break;
+            this.now = Math.max(this.now, next);
+            for (Timers scheduled : this.timers)
+                scheduled.expire(this.now);
+        }
+        this.now = target;
+    }
+
+    @Override
+    public boolean attach(Timers timers) {
+        this.timers.add(timers);
+        return true;
+    }
+
+    @Override
+    public void detach(Timers timers) {
+        this.timers.remove(timers);
+    }
+}